@@ -0,0 +1,87 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Effective value computation, as done twice per build page render.
+ *
+ * The benchmarks run without a Jenkins instance, so role filtering sees an
+ * empty role set: it measures the filtering and caching, not role lookup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ComputeValueBenchmark {
+
+	@Param({"10", "1000", "20000"})
+	public int choices;
+
+	private ExtendedChoiceParameterDefinition inline;
+
+	private ExtendedChoiceParameterDefinition propertyFile;
+
+	private ExtendedChoiceParameterDefinition roleFiltered;
+
+	private ExtendedChoiceParameterDefinition roleFilteredWithProjectName;
+
+	@Setup
+	public void setUp() throws Exception {
+		String values = Fixtures.choices(choices);
+		File file = Fixtures.propertyFile("key", values);
+
+		inline = Fixtures.definition(ExtendedChoiceParameterDefinition.PARAMETER_TYPE_SINGLE_SELECT,
+				values, "", "", "choice0", "", false);
+		propertyFile = Fixtures.definition(ExtendedChoiceParameterDefinition.PARAMETER_TYPE_SINGLE_SELECT,
+				"", file.getPath(), "key", "", "", false);
+		roleFiltered = Fixtures.definition(ExtendedChoiceParameterDefinition.PARAMETER_TYPE_SINGLE_SELECT,
+				"", file.getPath(), "key", "", "", true);
+		roleFilteredWithProjectName = Fixtures.definition(ExtendedChoiceParameterDefinition.PARAMETER_TYPE_SINGLE_SELECT,
+				"", file.getPath(), "key", "", "project", true);
+	}
+
+	@Benchmark
+	public String inline() {
+		return inline.getEffectiveValue();
+	}
+
+	@Benchmark
+	public String propertyFile() {
+		return propertyFile.getEffectiveValue();
+	}
+
+	@Benchmark
+	public String propertyFileDefault() {
+		return propertyFile.getEffectiveDefaultValue();
+	}
+
+	@Benchmark
+	public String roleFiltered() {
+		return roleFiltered.getEffectiveValue();
+	}
+
+	@Benchmark
+	public String roleFilteredWithProjectName() {
+		return roleFilteredWithProjectName.getEffectiveValue();
+	}
+}
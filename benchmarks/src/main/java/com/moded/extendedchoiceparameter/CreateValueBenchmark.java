@@ -0,0 +1,91 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.model.ParameterValue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Both createValue overloads: the one used by buildWithParameters and the one
+ * used by the build form.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CreateValueBenchmark {
+
+	@Param({"10", "1000", "20000"})
+	public int choices;
+
+	@Param({"1", "10"})
+	public int selected;
+
+	private ExtendedChoiceParameterDefinition definition;
+
+	private StaplerRequest request;
+
+	private JSONObject form;
+
+	@Setup
+	public void setUp() throws Exception {
+		definition = Fixtures.definition(ExtendedChoiceParameterDefinition.PARAMETER_TYPE_MULTI_SELECT,
+				Fixtures.choices(choices), "", "", "", "", false);
+
+		final String[] values = new String[selected];
+		JSONArray jsonValues = new JSONArray();
+		for(int i = 0; i < selected; ++i) {
+			values[i] = "choice" + (i * choices / selected);
+			jsonValues.add(values[i]);
+		}
+
+		request = (StaplerRequest) Proxy.newProxyInstance(StaplerRequest.class.getClassLoader(),
+				new Class<?>[] {StaplerRequest.class}, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if("getParameterValues".equals(method.getName())) {
+							return values;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+
+		form = new JSONObject();
+		form.put("name", definition.getName());
+		form.put("value", jsonValues);
+	}
+
+	@Benchmark
+	public ParameterValue createValueFromRequestParameters() {
+		return definition.createValue(request);
+	}
+
+	@Benchmark
+	public ParameterValue createValueFromForm() {
+		return definition.createValue(request, form);
+	}
+}
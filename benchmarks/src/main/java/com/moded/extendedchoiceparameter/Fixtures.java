@@ -0,0 +1,102 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Generated inputs shared by the benchmarks.
+ */
+final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Returns "choice0,choice1,...".
+	 */
+	static String choices(int count) {
+		StringBuilder choices = new StringBuilder();
+		for(int i = 0; i < count; ++i) {
+			if(i > 0) {
+				choices.append(',');
+			}
+			choices.append("choice").append(i);
+		}
+		return choices.toString();
+	}
+
+	static File propertyFile(String key, String choices) throws IOException {
+		File file = File.createTempFile("ecp-benchmark", ".properties");
+		file.deleteOnExit();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1");
+		try {
+			writer.write(key + "=" + choices + "\n");
+		}
+		finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Returns the comma separated column names of a multi-level file.
+	 */
+	static String levelNames(int levels) {
+		StringBuilder names = new StringBuilder();
+		for(int level = 0; level < levels; ++level) {
+			if(level > 0) {
+				names.append(',');
+			}
+			names.append("LEVEL_").append(level);
+		}
+		return names.toString();
+	}
+
+	/**
+	 * Writes a multi-level file whose rows form a complete tree with the same
+	 * fan-out at every level.
+	 */
+	static File multiLevelFile(int rows, int levels) throws IOException {
+		int fanOut = (int) Math.ceil(Math.pow(rows, 1.0 / levels));
+		File file = File.createTempFile("ecp-benchmark", ".tsv");
+		file.deleteOnExit();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), MultiLevelIndex.CHARSET);
+		try {
+			writer.write(levelNames(levels).replace(',', '\t'));
+			writer.write('\n');
+			for(int row = 0; row < rows; ++row) {
+				int rest = row;
+				String[] values = new String[levels];
+				for(int level = levels - 1; level >= 0; --level) {
+					values[level] = "level" + level + "_" + (rest % fanOut);
+					rest /= fanOut;
+				}
+				for(int level = 0; level < levels; ++level) {
+					if(level > 0) {
+						writer.write('\t');
+					}
+					writer.write(values[level]);
+				}
+				writer.write('\n');
+			}
+		}
+		finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	static ExtendedChoiceParameterDefinition definition(String type, String value, String propertyFile, String propertyKey,
+			String defaultValue, String projectName, boolean roleBasedFilter) {
+		return new ExtendedChoiceParameterDefinition("benchmark", type, value, propertyFile, propertyKey, defaultValue,
+				propertyFile, propertyKey, false, 5, "", ",", "", false, "", "", "", projectName, roleBasedFilter);
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multi-level parameters over generated tab delimited files.
+ *
+ * {@link #compile()} measures a cold load of the file into a
+ * {@link MultiLevelIndex}; the other benchmarks render from the cached index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MultiLevelBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int rows;
+
+	@Param({"2", "5", "8"})
+	public int levels;
+
+	private ExtendedChoiceParameterDefinition definition;
+
+	private String[] path;
+
+	@Setup
+	public void setUp() throws Exception {
+		File file = Fixtures.multiLevelFile(rows, levels);
+		definition = Fixtures.definition(ExtendedChoiceParameterDefinition.PARAMETER_TYPE_MULTI_LEVEL_MULTI_SELECT,
+				Fixtures.levelNames(levels), file.getPath(), "", "", "", false);
+
+		// the deepest dropdown reachable by always picking the first choice
+		MultiLevelIndex index = definition.getMultiLevelIndex();
+		path = new String[levels - 1];
+		for(int level = 0; level < path.length; ++level) {
+			String[] prefix = new String[level];
+			System.arraycopy(path, 0, prefix, 0, level);
+			List<String> choices = index.getChoices(prefix);
+			path[level] = choices.get(1);
+		}
+	}
+
+	@Benchmark
+	public MultiLevelIndex compile() throws Exception {
+		ChoiceSourceCache.clear();
+		return definition.getMultiLevelIndex();
+	}
+
+	@Benchmark
+	public Map<String, String> getChoicesByDropdownId() throws Exception {
+		return definition.getChoicesByDropdownId();
+	}
+
+	@Benchmark
+	public String getMultiLevelDropdownIds() throws Exception {
+		return definition.getMultiLevelDropdownIds();
+	}
+
+	@Benchmark
+	public JSONArray computeMultiLevelChoices() {
+		return definition.computeMultiLevelChoices(path);
+	}
+}
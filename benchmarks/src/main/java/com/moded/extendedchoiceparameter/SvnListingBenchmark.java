@@ -0,0 +1,85 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.internal.io.fs.FSRepositoryFactory;
+import org.tmatesoft.svn.core.io.ISVNEditor;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+
+/**
+ * SVN tag listings against a local file:// repository.
+ *
+ * {@link #cached()} is served from memory and {@link #fullListing()} drops
+ * the listing so the directory is listed again. Revision checks run in the
+ * background and are not measured here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SvnListingBenchmark {
+
+	@Param({"100", "8000"})
+	public int tags;
+
+	private String svnUrl;
+
+	@Setup
+	public void setUp() throws Exception {
+		FSRepositoryFactory.setup();
+
+		File dir = File.createTempFile("ecp-benchmark", ".svn");
+		dir.delete();
+		SVNURL url = SVNRepositoryFactory.createLocalRepository(dir, true, false);
+		svnUrl = url.toString();
+
+		SVNRepository repository = SVNRepositoryFactory.create(url);
+		try {
+			ISVNEditor editor = repository.getCommitEditor("create tags", null);
+			editor.openRoot(-1);
+			editor.addDir("tags", null, -1);
+			for(int i = 0; i < tags; ++i) {
+				editor.addDir("tags/tag-" + i, null, -1);
+				editor.closeDir();
+			}
+			editor.closeDir();
+			editor.closeDir();
+			editor.closeEdit();
+		}
+		finally {
+			repository.closeSession();
+		}
+	}
+
+	@Benchmark
+	public String cached() throws Exception {
+		return SvnListingSource.getListContent(svnUrl, "", "", "tags");
+	}
+
+	@Benchmark
+	public String fullListing() throws Exception {
+		ChoiceSourceCache.clear();
+		return SvnListingSource.getListContent(svnUrl, "", "", "tags");
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Case-insensitive search over the choices of a parameter.
+ *
+ * Choices are kept in their original order and, lower-cased, in sorted order,
+ * so choices starting with the query are found by binary search. Choices that
+ * only contain the query are found by a scan and listed after them.
+ */
+final class ChoiceIndex {
+
+	static final ChoiceIndex EMPTY = new ChoiceIndex(new String[0]);
+
+	private final String[] choices;
+
+	private final String[] lowerCaseChoices;
+
+	/**
+	 * Positions of the choices, ordered by their lower-cased value.
+	 */
+	private final int[] sorted;
+
+	ChoiceIndex(String[] choices) {
+		this.choices = choices;
+		lowerCaseChoices = new String[choices.length];
+		Integer[] positions = new Integer[choices.length];
+		for(int i = 0; i < choices.length; ++i) {
+			lowerCaseChoices[i] = choices[i].toLowerCase(Locale.ROOT);
+			positions[i] = i;
+		}
+		Arrays.sort(positions, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return lowerCaseChoices[a].compareTo(lowerCaseChoices[b]);
+			}
+		});
+		sorted = new int[positions.length];
+		for(int i = 0; i < positions.length; ++i) {
+			sorted[i] = positions[i];
+		}
+	}
+
+	int size() {
+		return choices.length;
+	}
+
+	/**
+	 * Returns the given page of the choices matching the query: first the
+	 * choices starting with it, in alphabetical order, then the ones that
+	 * contain it elsewhere, in their original order. An empty query matches
+	 * every choice in its original order.
+	 */
+	Page search(String query, int offset, int limit) {
+		String q = query == null ? "" : query.trim().toLowerCase(Locale.ROOT);
+		offset = Math.max(offset, 0);
+		List<String> page = new ArrayList<String>(Math.max(0, Math.min(limit, choices.length)));
+		if(q.length() == 0) {
+			for(int i = offset; i < choices.length && page.size() < limit; ++i) {
+				page.add(choices[i]);
+			}
+			return new Page(page, choices.length);
+		}
+
+		int from = lowerBound(q);
+		int to = lowerBound(q + Character.MAX_VALUE);
+		int prefixMatches = to - from;
+		for(int i = offset; i < prefixMatches && page.size() < limit; ++i) {
+			page.add(choices[sorted[from + i]]);
+		}
+
+		int otherMatches = 0;
+		for(int i = 0; i < lowerCaseChoices.length; ++i) {
+			String choice = lowerCaseChoices[i];
+			if(choice.indexOf(q) > 0) {
+				if(prefixMatches + otherMatches >= offset && page.size() < limit) {
+					page.add(choices[i]);
+				}
+				++otherMatches;
+			}
+		}
+		return new Page(page, prefixMatches + otherMatches);
+	}
+
+	/**
+	 * Returns the position in {@link #sorted} of the first choice not less
+	 * than the given lower-cased key.
+	 */
+	private int lowerBound(String key) {
+		int low = 0;
+		int high = sorted.length;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(lowerCaseChoices[sorted[mid]].compareTo(key) < 0) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	static final class Page {
+		final List<String> choices;
+		final int total;
+
+		Page(List<String> choices, int total) {
+			this.choices = Collections.unmodifiableList(choices);
+			this.total = total;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Timings and cache statistics of the stages that compute choices, per job,
+ * parameter and stage.
+ *
+ * A stage is timed by a {@link Sample} started on the calling thread; the
+ * caches and sources called while it runs report their hits, misses and bytes
+ * read to it through {@link #cacheHit()}, {@link #cacheMiss()} and
+ * {@link #bytesRead(long)}. Work done on background threads is not
+ * attributed to any parameter.
+ */
+public final class ChoiceMetrics {
+
+	public enum Stage {
+		PROPERTY_FILE("propertyFile"),
+		SVN_LISTING("svnListing"),
+		ROLE_FILTER("roleFilter"),
+		MULTI_LEVEL_INDEX("multiLevelIndex");
+
+		private final String id;
+
+		Stage(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+	}
+
+	/**
+	 * Job name used when a stage runs outside of a request under a job.
+	 */
+	static final String UNKNOWN_JOB = "(unknown)";
+
+	private static final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+	private static final ThreadLocal<Sample> current = new ThreadLocal<Sample>();
+
+	private ChoiceMetrics() {
+	}
+
+	/**
+	 * Starts timing a stage on the current thread. The returned sample must be
+	 * stopped, normally in a finally block.
+	 */
+	static Sample start(String job, String parameter, Stage stage) {
+		job = StringUtils.defaultIfEmpty(job, UNKNOWN_JOB);
+		String key = job + '\n' + parameter + '\n' + stage.id;
+		Stats s = stats.get(key);
+		if(s == null) {
+			stats.putIfAbsent(key, new Stats(job, parameter, stage));
+			s = stats.get(key);
+		}
+		Sample sample = new Sample(s, current.get());
+		current.set(sample);
+		return sample;
+	}
+
+	/**
+	 * Records a cache hit against the stage running on the current thread, if
+	 * any.
+	 */
+	static void cacheHit() {
+		Sample sample = current.get();
+		if(sample != null) {
+			sample.hits++;
+		}
+	}
+
+	/**
+	 * Records a cache miss against the stage running on the current thread, if
+	 * any.
+	 */
+	static void cacheMiss() {
+		Sample sample = current.get();
+		if(sample != null) {
+			sample.misses++;
+		}
+	}
+
+	/**
+	 * Records bytes read from a source against the stage running on the
+	 * current thread, if any.
+	 */
+	static void bytesRead(long bytes) {
+		Sample sample = current.get();
+		if(sample != null) {
+			sample.bytesRead += bytes;
+		}
+	}
+
+	/**
+	 * Returns the statistics of every job, parameter and stage seen so far,
+	 * ordered by total time spent, highest first.
+	 */
+	public static List<Stats> getAll() {
+		List<Stats> all = new ArrayList<Stats>(stats.values());
+		Collections.sort(all, new Comparator<Stats>() {
+			public int compare(Stats a, Stats b) {
+				long ta = a.totalNanos.get();
+				long tb = b.totalNanos.get();
+				return ta == tb ? 0 : ta > tb ? -1 : 1;
+			}
+		});
+		return all;
+	}
+
+	static void reset() {
+		stats.clear();
+	}
+
+	/**
+	 * One timed run of a stage.
+	 */
+	static final class Sample {
+		private final Stats stats;
+		private final Sample outer;
+		private final long startedAt = System.nanoTime();
+		private boolean failed;
+		int hits;
+		int misses;
+		long bytesRead;
+
+		private Sample(Stats stats, Sample outer) {
+			this.stats = stats;
+			this.outer = outer;
+		}
+
+		void fail() {
+			failed = true;
+		}
+
+		void stop() {
+			stats.record(System.nanoTime() - startedAt, failed, hits, misses, bytesRead);
+			if(outer == null) {
+				current.remove();
+			}
+			else {
+				current.set(outer);
+			}
+		}
+	}
+
+	@ExportedBean(defaultVisibility = 2)
+	public static final class Stats {
+		private final String job;
+		private final String parameter;
+		private final Stage stage;
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong cacheHits = new AtomicLong();
+		private final AtomicLong cacheMisses = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final Histogram latency = new Histogram();
+
+		Stats(String job, String parameter, Stage stage) {
+			this.job = job;
+			this.parameter = parameter;
+			this.stage = stage;
+		}
+
+		void record(long nanos, boolean failed, int hits, int misses, long bytes) {
+			count.incrementAndGet();
+			if(failed) {
+				errors.incrementAndGet();
+			}
+			cacheHits.addAndGet(hits);
+			cacheMisses.addAndGet(misses);
+			bytesRead.addAndGet(bytes);
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while(nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+			latency.record(nanos / 1000);
+		}
+
+		@Exported
+		public String getJob() {
+			return job;
+		}
+
+		@Exported
+		public String getParameter() {
+			return parameter;
+		}
+
+		@Exported
+		public String getStage() {
+			return stage.getId();
+		}
+
+		@Exported
+		public long getCount() {
+			return count.get();
+		}
+
+		@Exported
+		public long getErrors() {
+			return errors.get();
+		}
+
+		@Exported
+		public long getCacheHits() {
+			return cacheHits.get();
+		}
+
+		@Exported
+		public long getCacheMisses() {
+			return cacheMisses.get();
+		}
+
+		@Exported
+		public long getBytesRead() {
+			return bytesRead.get();
+		}
+
+		@Exported
+		public double getTotalMillis() {
+			return millis(totalNanos.get());
+		}
+
+		@Exported
+		public double getMeanMillis() {
+			long n = count.get();
+			return n == 0 ? 0 : millis(totalNanos.get() / n);
+		}
+
+		@Exported
+		public double getMaxMillis() {
+			return millis(maxNanos.get());
+		}
+
+		@Exported
+		public double getP50Millis() {
+			return millis(latency.percentile(0.50) * 1000);
+		}
+
+		@Exported
+		public double getP95Millis() {
+			return millis(latency.percentile(0.95) * 1000);
+		}
+
+		@Exported
+		public double getP99Millis() {
+			return millis(latency.percentile(0.99) * 1000);
+		}
+
+		/**
+		 * Converts to milliseconds, rounded to the microsecond.
+		 */
+		private static double millis(long nanos) {
+			return Math.round(nanos / 1e3) / 1e3;
+		}
+	}
+
+	/**
+	 * Lock-free latency histogram in microseconds. Every power of two is split
+	 * into four buckets, so percentiles are reported within 25%.
+	 */
+	static final class Histogram {
+		private static final int SUB_BUCKETS = 4;
+
+		/**
+		 * Enough buckets for latencies up to 2^36 microseconds; anything longer
+		 * falls into the last one.
+		 */
+		private static final int BUCKETS = 36 * SUB_BUCKETS;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+		void record(long micros) {
+			counts.incrementAndGet(bucket(micros));
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the given percentile,
+		 * in microseconds.
+		 */
+		long percentile(double p) {
+			long total = 0;
+			for(int i = 0; i < BUCKETS; ++i) {
+				total += counts.get(i);
+			}
+			if(total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; ++i) {
+				seen += counts.get(i);
+				if(seen >= rank) {
+					return upperBound(i);
+				}
+			}
+			return upperBound(BUCKETS - 1);
+		}
+
+		static int bucket(long micros) {
+			if(micros < SUB_BUCKETS) {
+				return (int) Math.max(micros, 0);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			int sub = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+			return Math.min((exponent - 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+		}
+
+		static long upperBound(int bucket) {
+			if(bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket / SUB_BUCKETS + 1;
+			long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 2);
+			return lower + (1L << (exponent - 2)) - 1;
+		}
+	}
+}
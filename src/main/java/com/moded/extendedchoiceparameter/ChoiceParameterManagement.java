@@ -0,0 +1,84 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * "Manage Jenkins" page of the plugin, showing how much time each parameter
+ * spends computing its choices, how far the startup warm-up got, which loaded
+ * sources are shared by which parameters and which remote sources are
+ * failing. The same
+ * data is available as JSON or XML under api/.
+ */
+@Extension
+@ExportedBean
+public class ChoiceParameterManagement extends ManagementLink {
+
+	@Override
+	public String getIconFileName() {
+		return "monitor.png";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return Messages.ChoiceParameterManagement_DisplayName();
+	}
+
+	@Override
+	public String getDescription() {
+		return Messages.ChoiceParameterManagement_Description();
+	}
+
+	@Override
+	public String getUrlName() {
+		return "extended-choice-parameter";
+	}
+
+	public Api getApi() {
+		Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+		return new Api(this);
+	}
+
+	@Exported
+	public List<ChoiceMetrics.Stats> getMetrics() {
+		return ChoiceMetrics.getAll();
+	}
+
+	@Exported
+	public List<CircuitBreaker> getCircuitBreakers() {
+		return ChoiceSourceCache.getBreakers();
+	}
+
+	@Exported
+	public ChoiceWarmUp getWarmUp() {
+		return ChoiceWarmUp.get();
+	}
+
+	@Exported
+	public List<SharedSource> getSharedSources() {
+		return ChoiceSourceCache.getSharedSources();
+	}
+
+	@RequirePOST
+	public HttpResponse doResetMetrics() throws IOException {
+		Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+		ChoiceMetrics.reset();
+		return HttpResponses.redirectToDot();
+	}
+}
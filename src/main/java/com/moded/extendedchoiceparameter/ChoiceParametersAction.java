@@ -0,0 +1,72 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.TransientProjectActionFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the choices of every extended choice parameter of a job in one
+ * response, at job/NAME/extended-choice-parameters/, as
+ * {"PARAM":{"name":...,"type":...,"choices":[...],"defaultValue":...},...}.
+ * The parameters are resolved in parallel by {@link ChoiceResolver}.
+ */
+public class ChoiceParametersAction implements Action {
+
+	private final Job<?, ?> job;
+
+	public ChoiceParametersAction(Job<?, ?> job) {
+		this.job = job;
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return "extended-choice-parameters";
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		job.checkPermission(Item.BUILD);
+		JSONObject result = new JSONObject();
+		for(JSONObject parameter: ChoiceResolver.resolve(ChoiceResolver.getDefinitions(job)).values()) {
+			result.put(parameter.getString("name"), parameter);
+		}
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(result.toString());
+	}
+
+	@Extension
+	public static class Factory extends TransientProjectActionFactory {
+		@Override
+		public Collection<? extends Action> createFor(AbstractProject target) {
+			List<ExtendedChoiceParameterDefinition> definitions = ChoiceResolver.getDefinitions(target);
+			if(definitions.isEmpty()) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new ChoiceParametersAction(target));
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.PageDecorator;
+
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.Ancestor;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Loads the sources of all extended choice parameters of a job in parallel
+ * when its parameters page starts rendering, once per page, so the page waits
+ * for the slowest source instead of all of them in turn.
+ *
+ * The page header waits at most {@link ChoiceResolver#PREFETCH_TIMEOUT};
+ * parameters whose sources are still loading by then wait for them when they
+ * are rendered.
+ */
+@Extension
+public class ChoicePrefetcher extends PageDecorator {
+
+	@Override
+	public String getDisplayName() {
+		return Messages.ChoicePrefetcher_DisplayName();
+	}
+
+	/**
+	 * Called by header.jelly on every page; does nothing but on the page
+	 * asking for the parameters of a build, job/.../build.
+	 */
+	public void prefetch() {
+		StaplerRequest request = Stapler.getCurrentRequest();
+		if(request == null) {
+			return;
+		}
+		List<Ancestor> ancestors = request.getAncestors();
+		if(ancestors.isEmpty()) {
+			return;
+		}
+		Ancestor last = ancestors.get(ancestors.size() - 1);
+		String path = StringUtils.removeEnd(request.getRequestURI(), "/");
+		if(last.getObject() instanceof Job && path.endsWith("/build")
+						&& !path.equals(StringUtils.removeEnd(last.getUrl(), "/"))) {
+			ChoiceResolver.prefetch((Job<?, ?>) last.getObject());
+		}
+	}
+}
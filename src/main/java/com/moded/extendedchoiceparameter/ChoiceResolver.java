@@ -0,0 +1,213 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.security.ACL;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Resolves all extended choice parameters of a job in parallel, so a page
+ * showing them waits for the slowest source instead of all of them in turn.
+ *
+ * Parameters are resolved on a bounded pool of daemon threads, as the user
+ * who asked for them. Once {@link #QUEUE_SIZE} tasks are waiting for a
+ * thread, further tasks run on the thread submitting them.
+ */
+final class ChoiceResolver {
+
+	private static final Logger LOGGER = Logger.getLogger(ChoiceResolver.class.getName());
+
+	/**
+	 * Maximum number of parameters resolved at the same time.
+	 */
+	static final int THREADS = Integer.getInteger(ChoiceResolver.class.getName() + ".threads", 8);
+
+	/**
+	 * How long a request waits for all parameters of a job, in milliseconds.
+	 */
+	static final long TIMEOUT = Long.getLong(ChoiceResolver.class.getName() + ".timeout", 30 * 1000L);
+
+	/**
+	 * How long the parameters page waits for the sources of all parameters
+	 * before it starts rendering them, in milliseconds.
+	 */
+	static final long PREFETCH_TIMEOUT = Long.getLong(ChoiceResolver.class.getName() + ".prefetchTimeout", 2 * 1000L);
+
+	/**
+	 * Maximum number of tasks waiting for a thread.
+	 */
+	static final int QUEUE_SIZE = Integer.getInteger(ChoiceResolver.class.getName() + ".queueSize", 64);
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+					60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Extended choice parameter resolver");
+							thread.setDaemon(true);
+							return thread;
+						}
+					},
+					new ThreadPoolExecutor.CallerRunsPolicy());
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private ChoiceResolver() {
+	}
+
+	/**
+	 * Returns the extended choice parameters of the given job.
+	 */
+	static List<ExtendedChoiceParameterDefinition> getDefinitions(Job<?, ?> job) {
+		List<ExtendedChoiceParameterDefinition> definitions = new ArrayList<ExtendedChoiceParameterDefinition>();
+		ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+		if(property != null) {
+			for(ParameterDefinition definition: property.getParameterDefinitions()) {
+				if(definition instanceof ExtendedChoiceParameterDefinition) {
+					definitions.add((ExtendedChoiceParameterDefinition) definition);
+				}
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * Resolves the given parameters in parallel and returns what
+	 * {@link ExtendedChoiceParameterDefinition#resolve()} returned for each, in
+	 * order. A parameter that fails or is not resolved within
+	 * {@link #TIMEOUT} is mapped to {"name":...,"error":...}.
+	 */
+	static Map<ExtendedChoiceParameterDefinition, JSONObject> resolve(List<ExtendedChoiceParameterDefinition> definitions) {
+		final Authentication authentication = Hudson.getAuthentication();
+		Map<ExtendedChoiceParameterDefinition, Future<JSONObject>> futures =
+						new LinkedHashMap<ExtendedChoiceParameterDefinition, Future<JSONObject>>();
+		for(final ExtendedChoiceParameterDefinition definition: definitions) {
+			futures.put(definition, executor.submit(new Callable<JSONObject>() {
+				public JSONObject call() {
+					SecurityContext previous = ACL.impersonate(authentication);
+					try {
+						return definition.resolve();
+					}
+					finally {
+						SecurityContextHolder.setContext(previous);
+					}
+				}
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		Map<ExtendedChoiceParameterDefinition, JSONObject> results =
+						new LinkedHashMap<ExtendedChoiceParameterDefinition, JSONObject>();
+		for(Map.Entry<ExtendedChoiceParameterDefinition, Future<JSONObject>> e: futures.entrySet()) {
+			JSONObject result;
+			try {
+				result = e.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			}
+			catch(ExecutionException x) {
+				LOGGER.log(Level.WARNING, "Failed to resolve " + e.getKey().getName(), x.getCause());
+				result = error(e.getKey(), String.valueOf(x.getCause()));
+			}
+			catch(TimeoutException x) {
+				result = error(e.getKey(), "Timed out");
+			}
+			catch(InterruptedException x) {
+				Thread.currentThread().interrupt();
+				result = error(e.getKey(), "Interrupted");
+			}
+			results.put(e.getKey(), result);
+		}
+		return results;
+	}
+
+	/**
+	 * Loads the sources of all parameters of the given job in parallel, once
+	 * per request, so that they are cached when the page renders the
+	 * parameters one by one. Only sources are loaded: the values shown to the
+	 * user are computed by the page itself, once, where they are memoized for
+	 * the request. Waits at most {@link #PREFETCH_TIMEOUT}; loads still
+	 * running by then carry on, and the parameters showing them wait for them.
+	 */
+	static void prefetch(final Job<?, ?> job) {
+		RequestMemo.get(job, "prefetch", new RequestMemo.Computation<Boolean>() {
+			Boolean compute() {
+				Map<String, Callable<Void>> tasks = new LinkedHashMap<String, Callable<Void>>();
+				for(ExtendedChoiceParameterDefinition definition: getDefinitions(job)) {
+					for(Map.Entry<String, Callable<Void>> e: definition.getWarmUpTasks(job, false).entrySet()) {
+						if(!tasks.containsKey(e.getKey())) {
+							tasks.put(e.getKey(), e.getValue());
+						}
+					}
+				}
+				if(tasks.size() > 1) {
+					load(tasks.values(), PREFETCH_TIMEOUT);
+				}
+				return Boolean.TRUE;
+			}
+		});
+	}
+
+	/**
+	 * Runs the given loads in parallel and waits at most the given number of
+	 * milliseconds for them. Failures are left for the page to report when it asks for the
+	 * failed source itself.
+	 */
+	private static void load(Collection<Callable<Void>> tasks, long timeout) {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(Callable<Void> task: tasks) {
+			futures.add(executor.submit(task));
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		for(Future<Void> future: futures) {
+			try {
+				future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+			}
+			catch(ExecutionException e) {
+				LOGGER.log(Level.FINE, "Failed to prefetch a source", e.getCause());
+			}
+			catch(TimeoutException e) {
+				return;
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static JSONObject error(ExtendedChoiceParameterDefinition definition, String message) {
+		JSONObject result = new JSONObject();
+		result.put("name", definition.getName());
+		result.put("error", message);
+		return result;
+	}
+}
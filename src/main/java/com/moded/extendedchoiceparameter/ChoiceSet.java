@@ -0,0 +1,125 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Effective value of a parameter together with the inputs it was computed
+ * from, so it can be reused until the property file or the user's roles
+ * change.
+ *
+ * Both inputs are compared by identity: {@link ChoiceSourceCache} returns the
+ * same map until the file changes and {@link RoleCache} returns the same set
+ * for the same roles. The lookup set and the search index are built once,
+ * however many requests ask for them at the same time.
+ *
+ * Parameters of different jobs computing the same value from the same inputs,
+ * e.g. jobs created from one template, share one instance, see
+ * {@link #share(ChoiceSet)}.
+ */
+final class ChoiceSet {
+
+	private static final Map<ChoiceSet, WeakReference<ChoiceSet>> shared = new WeakHashMap<ChoiceSet, WeakReference<ChoiceSet>>();
+
+	private final Map<String, String> properties;
+
+	private final Set<String> roles;
+
+	private final String value;
+
+	private volatile Set<String> choices;
+
+	private volatile ChoiceIndex index;
+
+	ChoiceSet(Map<String, String> properties, Set<String> roles, String value) {
+		this.properties = properties;
+		this.roles = roles;
+		this.value = value;
+	}
+
+	/**
+	 * Returns an instance equal to the given one that is already in use, or
+	 * the given one if there is none.
+	 */
+	static ChoiceSet share(ChoiceSet choices) {
+		synchronized(shared) {
+			WeakReference<ChoiceSet> reference = shared.get(choices);
+			ChoiceSet existing = reference == null ? null : reference.get();
+			if(existing != null) {
+				return existing;
+			}
+			shared.put(choices, new WeakReference<ChoiceSet>(choices));
+			return choices;
+		}
+	}
+
+	boolean isFor(Map<String, String> properties, Set<String> roles) {
+		return this.properties == properties && this.roles == roles;
+	}
+
+	String getValue() {
+		return value;
+	}
+
+	/**
+	 * Returns whether the given value is one of the comma separated choices.
+	 */
+	boolean contains(String choice) {
+		Set<String> choices = this.choices;
+		if(choices == null) {
+			synchronized(this) {
+				choices = this.choices;
+				if(choices == null) {
+					choices = value == null
+							? Collections.<String>emptySet()
+							: Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(value.split(","))));
+					this.choices = choices;
+				}
+			}
+		}
+		return choices.contains(choice);
+	}
+
+	/**
+	 * Returns the search index of the comma separated choices.
+	 */
+	ChoiceIndex getIndex() {
+		ChoiceIndex index = this.index;
+		if(index == null) {
+			synchronized(this) {
+				index = this.index;
+				if(index == null) {
+					index = value == null ? ChoiceIndex.EMPTY : new ChoiceIndex(value.split(","));
+					this.index = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof ChoiceSet)) {
+			return false;
+		}
+		ChoiceSet other = (ChoiceSet) o;
+		return properties == other.properties && roles == other.roles
+				&& (value == null ? other.value == null : value.equals(other.value));
+	}
+
+	@Override
+	public int hashCode() {
+		return (System.identityHashCode(properties) * 31 + System.identityHashCode(roles)) * 31
+				+ (value == null ? 0 : value.hashCode());
+	}
+}
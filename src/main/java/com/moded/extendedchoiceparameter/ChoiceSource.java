@@ -0,0 +1,222 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.ExtensionPoint;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Something choices are loaded from, such as a property file, a URL, a
+ * multi-level file, an SVN directory or the value configured inline.
+ *
+ * A source only knows how to fingerprint and load a location.
+ * {@link ChoiceSourceCache} takes care of caching the loaded value, loading it
+ * once for concurrent callers, bounding how long callers wait for remote
+ * sources and refreshing remote sources in the background.
+ *
+ * Every source is contributed through this extension point; the plugin's own
+ * are registered like any other. Sources come in kinds, one per abstract
+ * subclass: {@link PropertySource}, {@link MultiLevelSource},
+ * {@link ListingSource} and {@link ValueSource}. For each location the first
+ * registered source of the kind, by descending ordinal, that
+ * {@link #handles(String) handles} it is used, so a plugin can replace a
+ * built-in source by registering one with a higher ordinal.
+ *
+ * @param <T> what the source loads
+ */
+public abstract class ChoiceSource<T> implements ExtensionPoint {
+
+	/**
+	 * How long the source found for a location is reused, in milliseconds.
+	 * Finding it may touch the file system, e.g. to see whether a local file
+	 * exists.
+	 */
+	static final long RESOLVE_INTERVAL = Long.getLong(ChoiceSource.class.getName() + ".resolveInterval", 1000L);
+
+	/**
+	 * How many resolutions are kept before expired ones are dropped.
+	 */
+	private static final int MAX_RESOLVED = 1000;
+
+	private static final ConcurrentMap<String, Resolution> resolved = new ConcurrentHashMap<String, Resolution>();
+
+	/**
+	 * Identifies this source in cache keys. Sources whose instances are
+	 * configured differently, e.g. with other credentials, must return
+	 * different ids.
+	 */
+	public String getId() {
+		return getClass().getName();
+	}
+
+	/**
+	 * Describes this source to administrators. Must not reveal credentials.
+	 */
+	public String getDisplayName() {
+		return getId();
+	}
+
+	/**
+	 * Whether this source reads the given location. Sources that read
+	 * whatever they are given, like the built-in fallbacks, return true.
+	 */
+	public boolean handles(String location) {
+		return true;
+	}
+
+	/**
+	 * Returns the spelling of the location its value is cached under, so that
+	 * every spelling of one location shares one value. The default returns
+	 * the location as is.
+	 */
+	public String normalize(String location) throws IOException {
+		return location;
+	}
+
+	/**
+	 * Returns a cheap fingerprint of the current content of the location, such
+	 * as a modification time or a revision. The cached value is reused as long
+	 * as the fingerprint does not change. Null means the content cannot be
+	 * fingerprinted; it is then loaded again every time it is rechecked.
+	 */
+	public abstract Object getVersion(String location) throws Exception;
+
+	/**
+	 * Loads the location.
+	 *
+	 * @param previous the value last loaded from the location, or null; may be
+	 *        returned as is if the source finds the content unchanged
+	 */
+	public abstract T load(String location, T previous) throws Exception;
+
+	/**
+	 * Whether the source is slow or unreliable enough that callers should not
+	 * wait for it. Remote sources are loaded on a background thread, callers
+	 * wait at most {@link #getTimeout()} for the first load and are served the
+	 * cached value while it is refreshed.
+	 */
+	public boolean isRemote() {
+		return false;
+	}
+
+	/**
+	 * How long a loaded value is served without checking the source, in
+	 * milliseconds.
+	 */
+	public long getRecheckInterval() {
+		return isRemote() ? 60 * 1000L : 1000L;
+	}
+
+	/**
+	 * How long a caller waits for the first load of a remote source, in
+	 * milliseconds.
+	 */
+	public long getTimeout() {
+		return 10 * 1000L;
+	}
+
+	/**
+	 * Returns a value persisted by an earlier run, served while the source is
+	 * loaded for the first time, or null.
+	 */
+	public T getLastKnown(String location) {
+		return null;
+	}
+
+	/**
+	 * Returns roughly how many bytes of memory the given value takes, or -1 if
+	 * unknown. Shown to administrators.
+	 */
+	public long getSize(T value) {
+		return -1;
+	}
+
+	/**
+	 * Returns the local file the location is read from, or null. When the file
+	 * can be watched, the cached value is served without rechecking the source
+	 * and is reloaded as soon as the file changes.
+	 */
+	public File getWatchedFile(String location) {
+		return null;
+	}
+
+	/**
+	 * Called once no parameter uses the location any more. Sources that keep
+	 * something for a location outside of {@link ChoiceSourceCache}, e.g. a
+	 * copy on disk, drop it here.
+	 */
+	public void forget(String location) {
+	}
+
+	/**
+	 * Returns the source of the given kind that reads the given location: the
+	 * first registered one that handles it, or the first built-in one when
+	 * Jenkins is not running.
+	 */
+	static <S extends ChoiceSource<?>> S find(Class<S> kind, String location) throws IOException {
+		String key = kind.getName() + '\n' + location;
+		long now = System.currentTimeMillis();
+		Resolution resolution = resolved.get(key);
+		if(resolution != null && now - resolution.resolvedAt < RESOLVE_INTERVAL) {
+			return kind.cast(resolution.source);
+		}
+
+		Hudson hudson = Hudson.getInstance();
+		List<? extends ChoiceSource<?>> sources;
+		if(hudson == null) {
+			sources = BuiltIn.SOURCES;
+		}
+		else {
+			sources = hudson.getExtensionList(kind);
+		}
+		for(ChoiceSource<?> source: sources) {
+			if(kind.isInstance(source) && source.handles(location)) {
+				if(resolved.size() >= MAX_RESOLVED) {
+					expireResolutions(now);
+				}
+				resolved.put(key, new Resolution(source, now));
+				return kind.cast(source);
+			}
+		}
+		throw new IOException("No " + kind.getSimpleName() + " handles " + location);
+	}
+
+	private static void expireResolutions(long now) {
+		for(Iterator<Resolution> i = resolved.values().iterator(); i.hasNext();) {
+			if(now - i.next().resolvedAt >= RESOLVE_INTERVAL) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * The plugin's own sources, used when Jenkins is not running, by
+	 * descending ordinal.
+	 */
+	private static final class BuiltIn {
+		static final List<ChoiceSource<?>> SOURCES = Arrays.<ChoiceSource<?>>asList(new LocalPropertySource(),
+						new UrlPropertySource(), new MultiLevelIndex.FileSource(), new SvnListingSource(),
+						new LiteralValueSource());
+	}
+
+	private static final class Resolution {
+		final ChoiceSource<?> source;
+		final long resolvedAt;
+
+		Resolution(ChoiceSource<?> source, long resolvedAt) {
+			this.source = source;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+}
@@ -0,0 +1,514 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide cache of everything loaded from a {@link ChoiceSource}.
+ *
+ * Values are keyed by source id and location. A value is served as is for the
+ * source's recheck interval. After that, a local source is asked for its
+ * version and only loaded again if the version changed; a remote source keeps
+ * serving the cached value while a background thread refreshes it, and keeps
+ * the last good value if the refresh fails. Concurrent loads of the same
+ * location share one load, and callers wait for the first load of a remote
+ * source at most the source's timeout. Each remote location has a
+ * {@link CircuitBreaker}, so a source that keeps failing is not loaded again
+ * until its retry interval has passed.
+ *
+ * Values read from a local file that {@link FileWatcher} can watch are only
+ * rechecked every {@link #WATCHED_RECHECK_INTERVAL} milliseconds, in case an
+ * event is lost. When the file changes they are reloaded in the background;
+ * that reload neither joins a load that may have read the old content nor
+ * trusts an unchanged version.
+ *
+ * Values are shared by every parameter loading the same location. Loads made
+ * on behalf of a parameter, see {@link #setConsumer}, record it as a consumer
+ * of the value in a {@link SharedSource}; once none of its consumers is left,
+ * the value is dropped. So are values loaded on behalf of no parameter, e.g.
+ * for form validation, together with the location's circuit breaker, file
+ * watch and whatever the source keeps for it. The cache thus only grows with
+ * the locations parameters are configured with.
+ */
+final class ChoiceSourceCache {
+
+	private static final Logger LOGGER = Logger.getLogger(ChoiceSourceCache.class.getName());
+
+	private static final ConcurrentMap<String, Entry<?>> entries = new ConcurrentHashMap<String, Entry<?>>();
+
+	private static final SingleFlight<String> loads = new SingleFlight<String>();
+
+	private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private static final ConcurrentMap<String, SharedSource> shared = new ConcurrentHashMap<String, SharedSource>();
+
+	/**
+	 * The parameter the current thread loads values for, if any.
+	 */
+	private static final ThreadLocal<Consumer> consumer = new ThreadLocal<Consumer>();
+
+	/**
+	 * How often values without consumers are looked for, in milliseconds.
+	 */
+	static final long SWEEP_INTERVAL = Long.getLong(ChoiceSourceCache.class.getName() + ".sweepInterval", 60 * 1000L);
+
+	private static final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+	/**
+	 * How long a value kept up to date by a {@link FileWatcher} is served
+	 * without checking the source, in milliseconds.
+	 */
+	static final long WATCHED_RECHECK_INTERVAL = Long.getLong(ChoiceSourceCache.class.getName() + ".watchedRecheckInterval",
+					60 * 1000L);
+
+	/**
+	 * Numbers loads in the order they start, so a load never replaces the value
+	 * of a load that started after it.
+	 */
+	private static final AtomicLong loadSequence = new AtomicLong();
+
+	private static final ExecutorService executor = Executors.newFixedThreadPool(
+					Integer.getInteger(ChoiceSourceCache.class.getName() + ".threads", 4),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Extended choice parameter source loader");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+
+	private ChoiceSourceCache() {
+	}
+
+	/**
+	 * Returns the value of the given location, waiting for a remote source at
+	 * most its timeout.
+	 */
+	static <T> T get(ChoiceSource<T> source, String location) throws IOException {
+		try {
+			return get(source, location, source.getTimeout());
+		}
+		catch(TimeoutException e) {
+			throw new IOException("Timed out loading " + location);
+		}
+	}
+
+	/**
+	 * Returns the value of the given location, waiting for a remote source at
+	 * most the given number of milliseconds.
+	 */
+	static <T> T get(ChoiceSource<T> source, String location, long timeout) throws IOException, TimeoutException {
+		location = source.normalize(location);
+		String key = source.getId() + '\n' + location;
+		SharedSource sharedSource = getShared(key, source, location);
+		Consumer current = consumer.get();
+		if(current != null) {
+			sharedSource.addConsumer(current.owner, current.name);
+		}
+		sweepIfDue();
+
+		Entry<T> entry = getEntry(key);
+		if(entry == null) {
+			T lastKnown = source.getLastKnown(location);
+			if(lastKnown != null) {
+				entries.putIfAbsent(key, new Entry<T>(lastKnown, null, 0, false, 0));
+				entry = getEntry(key);
+			}
+		}
+
+		if(entry != null) {
+			long now = System.currentTimeMillis();
+			long recheckInterval = entry.watched ? WATCHED_RECHECK_INTERVAL : source.getRecheckInterval();
+			if(now - entry.checkedAt < recheckInterval) {
+				ChoiceMetrics.cacheHit();
+				return entry.value;
+			}
+			if(source.isRemote()) {
+				ChoiceMetrics.cacheHit();
+				if(getBreaker(key, source, location).allowRequest()) {
+					load(key, source, location);
+				}
+				return entry.value;
+			}
+			Object version;
+			try {
+				version = source.getVersion(location);
+			}
+			catch(Exception e) {
+				throw asIOException(e);
+			}
+			if(version != null && version.equals(entry.version)) {
+				entries.replace(key, entry, entry.checkedAt(now));
+				ChoiceMetrics.cacheHit();
+				return entry.value;
+			}
+		}
+
+		FutureTask<Entry<T>> load = null;
+		if(source.isRemote()) {
+			CircuitBreaker breaker = getBreaker(key, source, location);
+			if(!breaker.allowRequest()) {
+				// a half-open breaker lets one load through; everyone else waits for it
+				load = loads.running(key);
+				Date retryTime = breaker.getRetryTime();
+				if(load == null || retryTime != null) {
+					throw new IOException(location + (retryTime == null ? " is being retried" : " is unavailable until " + retryTime)
+									+ " after repeated failures: " + breaker.getLastFailure());
+				}
+			}
+		}
+
+		ChoiceMetrics.cacheMiss();
+		if(load == null) {
+			load = load(key, source, location);
+		}
+		try {
+			return (source.isRemote() ? load.get(timeout, TimeUnit.MILLISECONDS) : load.get()).value;
+		}
+		catch(ExecutionException e) {
+			throw asIOException(e.getCause());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading " + location);
+		}
+	}
+
+	/**
+	 * Returns the cached value of the given location if it is not due to be
+	 * checked yet, or null. Unlike {@link #get(ChoiceSource, String)} it
+	 * neither loads the location nor keeps anything for it.
+	 */
+	static <T> T getCached(ChoiceSource<T> source, String location) throws IOException {
+		Entry<T> entry = getEntry(source.getId() + '\n' + source.normalize(location));
+		if(entry == null) {
+			return null;
+		}
+		long recheckInterval = entry.watched ? WATCHED_RECHECK_INTERVAL : source.getRecheckInterval();
+		return System.currentTimeMillis() - entry.checkedAt < recheckInterval ? entry.value : null;
+	}
+
+	/**
+	 * Makes the current thread load values on behalf of the given parameter,
+	 * until the returned previous consumer is restored with
+	 * {@link #restoreConsumer(Consumer)}.
+	 */
+	static Consumer setConsumer(Object owner, String name) {
+		Consumer previous = consumer.get();
+		consumer.set(new Consumer(owner, name));
+		return previous;
+	}
+
+	static void restoreConsumer(Consumer previous) {
+		if(previous == null) {
+			consumer.remove();
+		}
+		else {
+			consumer.set(previous);
+		}
+	}
+
+	/**
+	 * Drops every cached value together with everything kept for its
+	 * location: consumers, circuit breaker, file watch and whatever the source
+	 * keeps.
+	 */
+	static void clear() {
+		for(Map.Entry<String, SharedSource> e: shared.entrySet()) {
+			if(shared.remove(e.getKey(), e.getValue())) {
+				drop(e.getKey(), e.getValue());
+			}
+		}
+		entries.clear();
+		breakers.clear();
+	}
+
+	/**
+	 * Returns every value loaded on behalf of a parameter that still has
+	 * consumers.
+	 */
+	static List<SharedSource> getSharedSources() {
+		sweep();
+		return new ArrayList<SharedSource>(shared.values());
+	}
+
+	/**
+	 * Returns whether a value loaded from the given source is still cached for
+	 * a parameter.
+	 */
+	static boolean isUsed(ChoiceSource<?> source) {
+		for(SharedSource sharedSource: shared.values()) {
+			if(sharedSource.getChoiceSource() == source) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns roughly how many bytes the value cached under the given key
+	 * takes, or -1.
+	 */
+	static <T> long getSize(String key, ChoiceSource<T> source) {
+		Entry<T> entry = getEntry(key);
+		return entry == null ? -1 : source.getSize(entry.value);
+	}
+
+	private static SharedSource getShared(String key, ChoiceSource<?> source, String location) {
+		SharedSource sharedSource = shared.get(key);
+		if(sharedSource == null) {
+			shared.putIfAbsent(key, new SharedSource(key, source, location));
+			sharedSource = shared.get(key);
+		}
+		return sharedSource;
+	}
+
+	private static void sweepIfDue() {
+		long last = lastSweep.get();
+		long now = System.currentTimeMillis();
+		if(now - last >= SWEEP_INTERVAL && lastSweep.compareAndSet(last, now)) {
+			sweep();
+		}
+	}
+
+	/**
+	 * Drops the values whose consumers are all gone, and everything else kept
+	 * for their locations.
+	 */
+	private static void sweep() {
+		for(Map.Entry<String, SharedSource> e: shared.entrySet()) {
+			SharedSource sharedSource = e.getValue();
+			if(sharedSource.getConsumerCount() == 0 && shared.remove(e.getKey(), sharedSource)) {
+				drop(e.getKey(), sharedSource);
+			}
+		}
+		// left behind by loads that finished after their location was swept
+		entries.keySet().retainAll(shared.keySet());
+		breakers.keySet().retainAll(shared.keySet());
+	}
+
+	/**
+	 * Drops the value of a location removed from {@link #shared} and
+	 * everything else kept for it.
+	 */
+	private static void drop(String key, SharedSource sharedSource) {
+		entries.remove(key);
+		breakers.remove(key);
+		ChoiceSource<?> source = sharedSource.getChoiceSource();
+		File file = source.getWatchedFile(sharedSource.getLocation());
+		if(file != null) {
+			FileWatcher.unwatch(file, key);
+		}
+		source.forget(sharedSource.getLocation());
+	}
+
+	/**
+	 * Returns the circuit breakers of every remote location loaded so far.
+	 */
+	static List<CircuitBreaker> getBreakers() {
+		return new ArrayList<CircuitBreaker>(breakers.values());
+	}
+
+	private static CircuitBreaker getBreaker(String key, ChoiceSource<?> source, String location) {
+		CircuitBreaker breaker = breakers.get(key);
+		if(breaker == null) {
+			breakers.putIfAbsent(key, new CircuitBreaker(source.getDisplayName(), location));
+			breaker = breakers.get(key);
+		}
+		return breaker;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> Entry<T> getEntry(String key) {
+		return (Entry<T>) entries.get(key);
+	}
+
+	/**
+	 * Watches the file the location is read from, if any. Must be called before
+	 * the file is read, so that no change goes unnoticed.
+	 *
+	 * @return whether the file is watched
+	 */
+	private static <T> boolean watch(final String key, final ChoiceSource<T> source, final String location) {
+		final File file = source.getWatchedFile(location);
+		return file != null && FileWatcher.watch(file, key, new Runnable() {
+			public void run() {
+				if(getEntry(key) == null) {
+					// dropped meanwhile; watched again when loaded again
+					FileWatcher.unwatch(file, key);
+					return;
+				}
+				reload(key, source, location);
+			}
+		});
+	}
+
+	/**
+	 * Loads the location again in the background, as when its content is
+	 * known to have changed, and returns the load.
+	 */
+	static <T> Future<?> reload(ChoiceSource<T> source, String location) throws IOException {
+		location = source.normalize(location);
+		return reload(source.getId() + '\n' + location, source, location);
+	}
+
+	private static <T> Future<?> reload(String key, ChoiceSource<T> source, String location) {
+		Entry<T> entry = getEntry(key);
+		FutureTask<Entry<T>> load = load(key, source, location, true, true);
+		if(entry != null) {
+			// until the reload is done, callers find no matching version and wait for it
+			entries.replace(key, entry, new Entry<T>(entry.value, null, 0, false, entry.sequence));
+		}
+		return load;
+	}
+
+	/**
+	 * Starts loading the location unless a load is already running, and returns
+	 * the running load. Remote sources are loaded on the executor, local ones
+	 * on the calling thread.
+	 */
+	private static <T> FutureTask<Entry<T>> load(String key, ChoiceSource<T> source, String location) {
+		return load(key, source, location, source.isRemote(), false);
+	}
+
+	/**
+	 * @param changed whether the content is known to have changed; the load
+	 *        then starts even if one is running, as that one may have read the
+	 *        old content, and the value is loaded even if the version did not
+	 *        change
+	 */
+	private static <T> FutureTask<Entry<T>> load(final String key, final ChoiceSource<T> source, final String location,
+					boolean inBackground, final boolean changed) {
+		Callable<Entry<T>> callable = new Callable<Entry<T>>() {
+			public Entry<T> call() throws Exception {
+				long sequence = loadSequence.incrementAndGet();
+				Entry<T> previous = getEntry(key);
+				CircuitBreaker breaker = source.isRemote() ? getBreaker(key, source, location) : null;
+				long now = System.currentTimeMillis();
+				boolean watched = !source.isRemote() && watch(key, source, location);
+				Entry<T> entry;
+				try {
+					Object version = source.getVersion(location);
+					if(!changed && previous != null && version != null && version.equals(previous.version)) {
+						entry = new Entry<T>(previous.value, version, now, watched, sequence);
+					}
+					else {
+						entry = new Entry<T>(source.load(location, previous == null ? null : previous.value), version, now,
+										watched, sequence);
+					}
+					if(breaker != null) {
+						breaker.onSuccess();
+					}
+				}
+				catch(Exception e) {
+					if(breaker != null) {
+						breaker.onFailure(e);
+					}
+					if(previous == null || !source.isRemote()) {
+						throw e;
+					}
+					LOGGER.log(Level.WARNING, "Failed to refresh " + location + ", serving the last good value", e);
+					entry = previous.checkedAt(now);
+				}
+				return store(key, entry);
+			}
+		};
+		Executor loader = inBackground ? executor : null;
+		return changed ? loads.restart(key, callable, loader) : loads.start(key, callable, loader);
+	}
+
+	/**
+	 * Caches the entry unless a load that started later already cached one, and
+	 * returns the cached entry.
+	 */
+	private static <T> Entry<T> store(String key, Entry<T> entry) {
+		while(true) {
+			Entry<T> current = getEntry(key);
+			if(current == null) {
+				if(entries.putIfAbsent(key, entry) == null) {
+					return entry;
+				}
+			}
+			else if(current.sequence > entry.sequence) {
+				return current;
+			}
+			else if(entries.replace(key, current, entry)) {
+				return entry;
+			}
+		}
+	}
+
+	private static IOException asIOException(Throwable t) {
+		if(t instanceof IOException) {
+			return (IOException) t;
+		}
+		if(t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		}
+		if(t instanceof Error) {
+			throw (Error) t;
+		}
+		return new IOException(t);
+	}
+
+	static final class Consumer {
+		final Object owner;
+		final String name;
+
+		Consumer(Object owner, String name) {
+			this.owner = owner;
+			this.name = name;
+		}
+	}
+
+	private static final class Entry<T> {
+		final T value;
+		final Object version;
+		final long checkedAt;
+		/**
+		 * Whether the value is kept up to date by a {@link FileWatcher}.
+		 */
+		final boolean watched;
+		/**
+		 * The number of the load the value was read by.
+		 */
+		final long sequence;
+
+		Entry(T value, Object version, long checkedAt, boolean watched, long sequence) {
+			this.value = value;
+			this.version = version;
+			this.checkedAt = checkedAt;
+			this.watched = watched;
+			this.sequence = sequence;
+		}
+
+		Entry<T> checkedAt(long now) {
+			return new Entry<T>(value, version, now, watched, sequence);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Loads the sources of every extended choice parameter once Jenkins has loaded
+ * its jobs, so the first users after a restart do not wait for them.
+ *
+ * Only the property files and multi-level files the parameters name are
+ * loaded, unless {@link #BOUND_CHOICES} is set. Sources shared by several
+ * parameters are loaded once. The warm-up runs on its own daemon threads and
+ * never delays startup; a source that is slow or unreachable only delays its
+ * own task, as remote sources are waited for at most their timeout.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class ChoiceWarmUp {
+
+	private static final Logger LOGGER = Logger.getLogger(ChoiceWarmUp.class.getName());
+
+	public enum State {
+		PENDING, RUNNING, DONE, DISABLED
+	}
+
+	/**
+	 * Set to skip the warm-up.
+	 */
+	static final boolean DISABLED = Boolean.getBoolean(ChoiceWarmUp.class.getName() + ".disabled");
+
+	/**
+	 * Maximum number of sources loaded at the same time.
+	 */
+	static final int THREADS = Integer.getInteger(ChoiceWarmUp.class.getName() + ".threads", 2);
+
+	/**
+	 * Set to also load what every choice of a parameter bound to another field
+	 * selects: an SVN listing or a property file per choice, which can be many
+	 * requests to one server.
+	 */
+	static final boolean BOUND_CHOICES = Boolean.getBoolean(ChoiceWarmUp.class.getName() + ".boundChoices");
+
+	private static final ChoiceWarmUp INSTANCE = new ChoiceWarmUp();
+
+	private volatile State state = DISABLED ? State.DISABLED : State.PENDING;
+
+	private volatile int total;
+
+	private final AtomicInteger loaded = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private volatile long startedAt;
+
+	private volatile long finishedAt;
+
+	private ChoiceWarmUp() {
+	}
+
+	static ChoiceWarmUp get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts the warm-up on a background thread, unless it is disabled or
+	 * already started.
+	 */
+	synchronized void start() {
+		if(state != State.PENDING) {
+			return;
+		}
+		state = State.RUNNING;
+		startedAt = System.currentTimeMillis();
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+				try {
+					warmUp();
+				}
+				catch(RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Warm-up of extended choice parameters failed", e);
+				}
+				finally {
+					SecurityContextHolder.setContext(previous);
+					finishedAt = System.currentTimeMillis();
+					state = State.DONE;
+				}
+			}
+		}, "Extended choice parameter warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void warmUp() {
+		Map<String, Callable<Void>> tasks = new LinkedHashMap<String, Callable<Void>>();
+		for(Job<?, ?> job: Hudson.getInstance().getAllItems(Job.class)) {
+			for(ExtendedChoiceParameterDefinition definition: ChoiceResolver.getDefinitions(job)) {
+				for(Map.Entry<String, Callable<Void>> e: definition.getWarmUpTasks(job, BOUND_CHOICES).entrySet()) {
+					if(!tasks.containsKey(e.getKey())) {
+						tasks.put(e.getKey(), e.getValue());
+					}
+				}
+			}
+		}
+		total = tasks.size();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(THREADS, 1), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Extended choice parameter warm-up");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for(final Map.Entry<String, Callable<Void>> task: tasks.entrySet()) {
+			executor.execute(new Runnable() {
+				public void run() {
+					SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+					try {
+						task.getValue().call();
+						loaded.incrementAndGet();
+					}
+					catch(Exception e) {
+						failed.incrementAndGet();
+						LOGGER.log(Level.FINE, "Skipping " + task.getKey().replace('\n', ' '), e);
+					}
+					finally {
+						SecurityContextHolder.setContext(previous);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch(InterruptedException e) {
+			executor.shutdownNow();
+			return;
+		}
+		LOGGER.info("Loaded " + loaded.get() + " of " + total + " extended choice parameter sources in "
+						+ (System.currentTimeMillis() - startedAt) + " ms, " + failed.get() + " failed");
+	}
+
+	@Exported
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the number of distinct sources to load, known once the jobs
+	 * have been scanned.
+	 */
+	@Exported
+	public int getTotal() {
+		return total;
+	}
+
+	@Exported
+	public int getLoaded() {
+		return loaded.get();
+	}
+
+	@Exported
+	public int getFailed() {
+		return failed.get();
+	}
+
+	@Exported
+	public Date getStartTime() {
+		return startedAt == 0 ? null : new Date(startedAt);
+	}
+
+	/**
+	 * Returns how long the warm-up took or has taken so far, in milliseconds.
+	 */
+	@Exported
+	public long getDuration() {
+		if(startedAt == 0) {
+			return 0;
+		}
+		return (state == State.DONE ? finishedAt : System.currentTimeMillis()) - startedAt;
+	}
+
+	@Extension
+	public static class Listener extends ItemListener {
+		@Override
+		public void onLoaded() {
+			ChoiceWarmUp.get().start();
+		}
+	}
+}
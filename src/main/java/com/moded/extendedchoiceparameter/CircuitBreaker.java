@@ -0,0 +1,148 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.Date;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Stops loading a remote location after it failed repeatedly.
+ *
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the breaker opens:
+ * callers are served the last good value, or fail at once if there is none,
+ * without touching the source. After {@link #RETRY_INTERVAL} milliseconds one
+ * load is let through again; it closes the breaker if it succeeds and opens it
+ * for another interval if it fails. Callers arriving while that load runs wait
+ * for it.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Consecutive failures after which the breaker opens.
+	 */
+	static final int FAILURE_THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 3);
+
+	/**
+	 * How long the breaker stays open before a load is tried again, in
+	 * milliseconds.
+	 */
+	static final long RETRY_INTERVAL = Long.getLong(CircuitBreaker.class.getName() + ".retryInterval", 30 * 1000L);
+
+	private final String source;
+
+	private final String location;
+
+	private final long retryInterval;
+
+	private State state = State.CLOSED;
+
+	private int consecutiveFailures;
+
+	private long openedAt;
+
+	/**
+	 * Whether the one load a half-open breaker lets through is still running.
+	 */
+	private boolean trialInFlight;
+
+	private String lastFailure;
+
+	private long lastFailureAt;
+
+	CircuitBreaker(String source, String location) {
+		this(source, location, RETRY_INTERVAL);
+	}
+
+	CircuitBreaker(String source, String location, long retryInterval) {
+		this.source = source;
+		this.location = location;
+		this.retryInterval = retryInterval;
+	}
+
+	/**
+	 * Returns whether the location may be loaded now. Once the retry interval
+	 * has passed, moves an open breaker to half-open and lets exactly one load
+	 * through; until that load reports back through {@link #onSuccess()} or
+	 * {@link #onFailure(Throwable)}, no other load is allowed.
+	 */
+	synchronized boolean allowRequest() {
+		if(state == State.OPEN && System.currentTimeMillis() - openedAt >= retryInterval) {
+			state = State.HALF_OPEN;
+		}
+		if(state == State.CLOSED) {
+			return true;
+		}
+		if(state == State.HALF_OPEN && !trialInFlight) {
+			trialInFlight = true;
+			return true;
+		}
+		return false;
+	}
+
+	synchronized void onSuccess() {
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		trialInFlight = false;
+	}
+
+	synchronized void onFailure(Throwable t) {
+		long now = System.currentTimeMillis();
+		++consecutiveFailures;
+		lastFailure = String.valueOf(t);
+		lastFailureAt = now;
+		trialInFlight = false;
+		if(state == State.HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+			state = State.OPEN;
+			openedAt = now;
+		}
+	}
+
+	@Exported
+	public String getSource() {
+		return source;
+	}
+
+	@Exported
+	public String getLocation() {
+		return location;
+	}
+
+	@Exported
+	public synchronized State getState() {
+		return state;
+	}
+
+	@Exported
+	public synchronized int getConsecutiveFailures() {
+		return consecutiveFailures;
+	}
+
+	@Exported
+	public synchronized String getLastFailure() {
+		return lastFailure;
+	}
+
+	@Exported
+	public synchronized Date getLastFailureTime() {
+		return lastFailureAt == 0 ? null : new Date(lastFailureAt);
+	}
+
+	/**
+	 * Returns when an open breaker lets a load through again, or null if it is
+	 * not open.
+	 */
+	@Exported
+	public synchronized Date getRetryTime() {
+		return state == State.OPEN ? new Date(openedAt + retryInterval) : null;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Util;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Files the plugin keeps under JENKINS_HOME/dynamic-extended-choice-parameter
+ * to survive a restart, such as copies of remote documents and compiled
+ * multi-level files.
+ */
+final class DiskCache {
+
+	/**
+	 * Directory used instead of JENKINS_HOME/dynamic-extended-choice-parameter
+	 * if set; for tests.
+	 */
+	static volatile File root;
+
+	private DiskCache() {
+	}
+
+	/**
+	 * Returns the file holding what is cached for the given key in the given
+	 * area, or null if Jenkins is not running.
+	 */
+	static File getFile(String area, String key, String suffix) {
+		File dir = root;
+		if(dir == null) {
+			Hudson hudson = Hudson.getInstance();
+			if(hudson == null) {
+				return null;
+			}
+			dir = new File(hudson.getRootDir(), "dynamic-extended-choice-parameter");
+		}
+		return new File(new File(dir, area), Util.getDigestOf(key) + suffix);
+	}
+
+	/**
+	 * Replaces the content of the given file, so readers see either the old or
+	 * the new content but never a partial one.
+	 */
+	static void write(File file, byte[] content) throws IOException {
+		File dir = file.getParentFile();
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(content);
+		}
+		finally {
+			out.close();
+		}
+		if(!tmp.renameTo(file)) {
+			if(!file.delete() || !tmp.renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+	}
+}
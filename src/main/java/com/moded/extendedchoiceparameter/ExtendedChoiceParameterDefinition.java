@@ -7,33 +7,26 @@
 package com.moded.extendedchoiceparameter;
 
 import hudson.Extension;
+import hudson.Util;
+import hudson.model.Job;
 import hudson.model.ParameterValue;
 import hudson.model.ParameterDefinition;
 import hudson.util.FormValidation;
-import hudson.model.Hudson;
-import hudson.model.User;
-import hudson.security.AuthorizationStrategy;
-import com.michelin.cio.hudson.plugins.rolestrategy.Role;
-import com.michelin.cio.hudson.plugins.rolestrategy.RoleBasedAuthorizationStrategy;
-
-import java.io.File;
-import java.io.FileReader;
+
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Collection;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 
@@ -41,26 +34,18 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.Project;
-import org.apache.tools.ant.taskdefs.Property;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 
-import au.com.bytecode.opencsv.CSVReader;
-
 import org.kohsuke.stapler.bind.JavaScriptMethod;
 
-import org.tmatesoft.svn.core.SVNURL;
-import org.tmatesoft.svn.core.io.SVNRepository;
-import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
-import org.tmatesoft.svn.core.wc.SVNWCUtil;
-import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
-import org.tmatesoft.svn.core.SVNDirEntry;
-
 public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	private static final long serialVersionUID = -2946187268529865645L;
 
+	private static final Logger LOGGER = Logger.getLogger(ExtendedChoiceParameterDefinition.class.getName());
+
 	public static final String PARAMETER_TYPE_SINGLE_SELECT = "PT_SINGLE_SELECT";
 
 	public static final String PARAMETER_TYPE_MULTI_SELECT = "PT_MULTI_SELECT";
@@ -75,6 +60,17 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
         
 	public static final String PARAMETER_TYPE_MULTI_LEVEL_MULTI_SELECT = "PT_MULTI_LEVEL_MULTI_SELECT";
 
+	/**
+	 * Select parameters with more choices than this are rendered as a search
+	 * box over a page of matching choices rather than with every choice.
+	 */
+	static final int TYPE_AHEAD_THRESHOLD = Integer.getInteger(ExtendedChoiceParameterDefinition.class.getName() + ".typeAheadThreshold", 1000);
+
+	/**
+	 * Number of choices returned per page by {@link #searchChoices(String, int)}.
+	 */
+	static final int SEARCH_PAGE_SIZE = Integer.getInteger(ExtendedChoiceParameterDefinition.class.getName() + ".searchPageSize", 50);
+
 	@Extension
 	public static class DescriptorImpl extends ParameterDescriptor {
 		@Override
@@ -87,24 +83,16 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 				return FormValidation.ok();
 			}
 
-			Project project = new Project();
-			Property property = new Property();
-			property.setProject(project);
-
-			File prop = new File(propertyFile);
+			Map<String, String> properties;
 			try {
-				if(prop.exists()) {
-					property.setFile(prop);
-				}
-				else {
-					URL propertyFileUrl = new URL(propertyFile);
-					property.setUrl(propertyFileUrl);
-				}
-				property.execute();
+				properties = PropertyFileValidation.load(propertyFile);
 			}
 			catch(Exception e) {
 				return FormValidation.warning(Messages.ExtendedChoiceParameterDefinition_PropertyFileDoesntExist(), propertyFile);
 			}
+			if(properties == null) {
+				return FormValidation.ok(String.format(Messages.ExtendedChoiceParameterDefinition_StillChecking(), propertyFile));
+			}
 
 			if(   type.equals(PARAMETER_TYPE_MULTI_LEVEL_SINGLE_SELECT)
 				 || type.equals(PARAMETER_TYPE_MULTI_LEVEL_MULTI_SELECT))
@@ -112,7 +100,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 				return FormValidation.ok();
 			}
 			else if(StringUtils.isNotBlank(propertyKey)) {
-				if(project.getProperty(propertyKey) != null) {
+				if(properties.get(propertyKey) != null) {
 					return FormValidation.ok();
 				}
 				else {
@@ -175,6 +163,18 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	
 	private String svnPassword;
 
+	/**
+	 * Full name of the job this parameter belongs to, as seen by the last
+	 * request rendered under it. Only used to tag metrics.
+	 */
+	private transient volatile String ownerName;
+
+	/**
+	 * Effective value computed for the last property file version and role set
+	 * seen, reused by {@link #createValue(StaplerRequest)}.
+	 */
+	private transient volatile ChoiceSet effectiveChoices;
+
 	@DataBoundConstructor
 	public ExtendedChoiceParameterDefinition(String name, String type, String value, String propertyFile, String propertyKey, String defaultValue,
 			String defaultPropertyFile, String defaultPropertyKey, boolean quoteValue, int visibleItemCount, String description,
@@ -231,18 +231,11 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 			return new ExtendedChoiceParameterValue(getName(), requestValues[0]);
 		}
 		else {
-			String valueStr = getEffectiveValue();
-			if(valueStr != null) {
+			ChoiceSet choices = getEffectiveChoices();
+			if(choices.getValue() != null) {
 				List<String> result = new ArrayList<String>();
-
-				String[] values = valueStr.split(",");
-				Set<String> valueSet = new HashSet<String>();
-				for(String value: values) {
-					valueSet.add(value);
-				}
-
 				for(String requestValue: requestValues) {
-					if(valueSet.contains(requestValue)) {
+					if(choices.contains(requestValue)) {
 						result.add(requestValue);
 					}
 				}
@@ -307,293 +300,303 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	
 	
 	private String getSvnUrlListContent(String svnUrl, String svnUserName, String svnPassword, String svnPath){
-		
-		SVNRepository repository = null;
-		String svn_list_content="";
+		ChoiceMetrics.Sample sample = startSample(ChoiceMetrics.Stage.SVN_LISTING);
+		ChoiceSourceCache.Consumer previous = ChoiceSourceCache.setConsumer(this, getConsumerName());
 		try {
-			repository = SVNRepositoryFactory.create( SVNURL.parseURIDecoded( svnUrl ) );
-			ISVNAuthenticationManager authManager = SVNWCUtil.createDefaultAuthenticationManager( svnUserName , svnPassword );
-			repository.setAuthenticationManager( authManager );
-			Collection entries = repository.getDir( svnPath, -1 , null , (Collection) null );
-			Iterator iterator = entries.iterator( );
-			SortedMap<Long,String> sortedSvnListMap = new TreeMap<Long,String>();
-			while ( iterator.hasNext( ) ) {
-				SVNDirEntry entry = ( SVNDirEntry ) iterator.next( );
-				sortedSvnListMap.put(entry.getRevision(),entry.getName());
-			}
-			
-			entries=sortedSvnListMap.values();
-			iterator = entries.iterator( );
-			
-			while ( iterator.hasNext( ) ) {
-				svn_list_content = ( String ) iterator.next( ) + "," + svn_list_content;
-			}
-			
-			
-			return svn_list_content;
+			return ListingSource.getListing(svnUrl, svnUserName, svnPassword, svnPath);
 		}
 		catch(Exception e) {
-			
+			sample.fail();
 			return "";
 		}
+		finally {
+			ChoiceSourceCache.restoreConsumer(previous);
+			sample.stop();
+		}
+	}
+
+	private ChoiceMetrics.Sample startSample(ChoiceMetrics.Stage stage) {
+		StaplerRequest request = Stapler.getCurrentRequest();
+		if(request != null) {
+			Job<?, ?> job = request.findAncestorObject(Job.class);
+			if(job != null) {
+				ownerName = job.getFullName();
+			}
+		}
+		return ChoiceMetrics.start(ownerName, getName(), stage);
+	}
+
+	/**
+	 * Names this parameter on the management page's list of shared sources.
+	 */
+	private String getConsumerName() {
+		return ownerName == null ? getName() : ownerName + " / " + getName();
+	}
+
+	private Map<String, String> loadProperties(String propertyFilePath) throws IOException {
+		ChoiceMetrics.Sample sample = startSample(ChoiceMetrics.Stage.PROPERTY_FILE);
+		ChoiceSourceCache.Consumer previous = ChoiceSourceCache.setConsumer(this, getConsumerName());
+		try {
+			return PropertySource.getProperties(propertyFilePath);
+		}
+		catch(IOException e) {
+			sample.fail();
+			throw e;
+		}
+		finally {
+			ChoiceSourceCache.restoreConsumer(previous);
+			sample.stop();
+		}
+	}
+
+	/**
+	 * Returns the comma separated choices the given inline value stands for.
+	 */
+	private String loadValue(String value) throws IOException {
+		ChoiceSourceCache.Consumer previous = ChoiceSourceCache.setConsumer(this, getConsumerName());
+		try {
+			return ValueSource.getValue(value);
+		}
+		finally {
+			ChoiceSourceCache.restoreConsumer(previous);
+		}
 	}
 	
+	/**
+	 * Returns the property file listing the choices of the bound field when
+	 * the given choice of this parameter is selected: the file named after the
+	 * choice next to this parameter's own property file, or null.
+	 */
+	private String getBoundPropertyFile(String choice) {
+		if(StringUtils.isBlank(propertyFile) || choice.indexOf('/') != -1 || choice.indexOf('\\') != -1) {
+			return null;
+		}
+		int separator = propertyFile.indexOf('/') != -1 ? propertyFile.lastIndexOf('/') : propertyFile.lastIndexOf('\\');
+		return separator == -1 ? null : propertyFile.substring(0, separator + 1) + choice + ".txt";
+	}
+
+	/**
+	 * Returns "Select" followed by the choices of the bound field's current
+	 * selection, comma separated. Only choices this parameter offers the
+	 * current user are looked up, so pages cannot make the plugin load
+	 * arbitrary locations.
+	 */
+	private String computeChoiceContent(String propertyKey, String src_name) throws Exception {
+		if(src_name == null || !getEffectiveChoices().contains(src_name)) {
+			throw new IOException(src_name + " is not a choice of " + getName());
+		}
+		String file_content="";
+		if (this.svnPath)
+		{
+			if (src_name.equals("trunk"))
+			{
+				file_content="trunk";
+			}
+			else
+			{
+				file_content=getSvnUrlListContent(this.svnUrl,this.svnUserName,this.svnPassword,src_name);
+			}
+			
+		}
+		else{
+			String propertyFilePath = getBoundPropertyFile(src_name);
+			if (propertyFilePath == null)
+			{
+				throw new IOException("No property file for " + src_name);
+			}
+			Map<String, String> properties = loadProperties(propertyFilePath);
+
+			if (!StringUtils.isBlank(this.projectName))
+			{
+				propertyKey=propertyKey + "_" + this.projectName;
+			}
+
+			file_content=properties.get(propertyKey);
+		}
+		
+		return "Select" + "," + file_content;
+	}
+
+	/**
+	 * Returns the choices of the bound field's current selection as
+	 * {"choices":[...],"hash":"..."}, or an empty object if they cannot be
+	 * computed. index.jelly renders them client-side and skips re-rendering
+	 * when the hash did not change.
+	 *
+	 * @param propertyFilePath ignored, the property file is derived from
+	 *        src_name; kept for pages rendered by older versions
+	 */
 	@JavaScriptMethod
-	public String computeValue(String propertyFilePath, String propertyKey, String src_name) {
-	//public String computeValue(String propertyFilePath, String propertyKey, String type, String visibleItemCount, boolean svnPath, String src_name, String svnUrl, String svnUserName) {
+	public JSONObject computeChoices(String propertyFilePath, String propertyKey, String src_name) {
+		JSONObject result = new JSONObject();
 		if(!StringUtils.isBlank(propertyFilePath) && !StringUtils.isBlank(propertyKey) && !StringUtils.isBlank(this.type)) {
 			try {
-				String file_content="";
-				if (this.svnPath)
+				String content = computeChoiceContent(propertyKey, src_name);
+				JSONArray choices = new JSONArray();
+				for (String choice : content.split(","))
 				{
-					if (src_name.equals("trunk"))
-					{
-						file_content="trunk";
-					}
-					else
-					{
-						file_content=getSvnUrlListContent(this.svnUrl,this.svnUserName,this.svnPassword,src_name);
-					}
-					
+					choices.add(choice);
 				}
-				else{
-					Project project = new Project();
-					Property property = new Property();
-					property.setProject(project);
+				result.put("choices", choices);
+				result.put("hash", Util.getDigestOf(content));
+			}
+			catch(Exception e) {
+				LOGGER.log(Level.WARNING, "Failed to compute the choices of " + getName() + " for " + src_name, e);
+			}
+		}
+		return result;
+	}
 
-					File propertyFile = new File(propertyFilePath);
-				
-					if(propertyFile.exists()) {
-						property.setFile(propertyFile);
-					}
-					else {
-						URL propertyFileUrl = new URL(propertyFilePath);
-						property.setUrl(propertyFileUrl);
-					}
-					property.execute();
-					
-					if (!StringUtils.isBlank(this.projectName))
-					{
-						propertyKey=propertyKey + "_" + this.projectName;
-					}
-				
-					file_content=project.getProperty(propertyKey);
+	/**
+	 * Returns the choices of the bound field's current selection as HTML.
+	 * Kept for pages rendered by older versions; index.jelly uses
+	 * {@link #computeChoices(String, String, String)}. Choices are escaped.
+	 */
+	@JavaScriptMethod
+	public String computeValue(String propertyFilePath, String propertyKey, String src_name) {
+		if(!StringUtils.isBlank(propertyFilePath) && !StringUtils.isBlank(propertyKey) && !StringUtils.isBlank(this.type)) {
+			try {
+				String[] list_arr = computeChoiceContent(propertyKey, src_name).split(",");
+				for (int i = 0; i < list_arr.length; ++i)
+				{
+					list_arr[i] = Util.escape(list_arr[i]);
 				}
 				
-				file_content = "Select" + "," + file_content;
-					
-				String[] list_arr = file_content.split(",");
-				
-				String result="";
+				StringBuilder result = new StringBuilder();
 				
 				if (this.type.equals("PT_SINGLE_SELECT"))
 				{
-					result+="<select name=\"value\">";
+					result.append("<select name=\"value\">");
 					for (int i = 0; i < list_arr.length; ++i)
 					{
-				
-						result+="<option value=\"" + list_arr[i] + "\">" + list_arr[i] + "</option>";
-					
+						result.append("<option value=\"").append(list_arr[i]).append("\">").append(list_arr[i]).append("</option>");
 					}
-					result+="</select>";
+					result.append("</select>");
 				}
 				else if (this.type.equals("PT_MULTI_SELECT"))
 				{
-					result+="<select name=\"value\" multiple=\"multiple\" size=\"" + this.visibleItemCount + "\">";
+					result.append("<select name=\"value\" multiple=\"multiple\" size=\"").append(this.visibleItemCount).append("\">");
 					for (int i = 0; i < list_arr.length; ++i)
 					{
-				
-						result+="<option value=\"" + list_arr[i] + "\">" + list_arr[i] + "</option>";
-					
+						result.append("<option value=\"").append(list_arr[i]).append("\">").append(list_arr[i]).append("</option>");
 					}
-					result+="</select>";
+					result.append("</select>");
 				}
 				else if (this.type.equals("PT_CHECKBOX"))
 				{
 					String name="module";
-					result+="<div id=\"ecp_" + name + "\" padding-left:25px\">";
+					result.append("<div id=\"ecp_").append(name).append("\" padding-left:25px\">");
 					int index=0;
-					result+="<table id=\"tbl_ecp_" + name + "\">";
+					result.append("<table id=\"tbl_ecp_").append(name).append("\">");
 					for (int value = 0; value < list_arr.length; ++value)
 					{
-						result+="<tr id=\"ecp_" + name + "_" + index + "\" style=\"white-space:nowrap\">";
-						result+="<td>";
-						result+="<input type=\"checkbox\" name=\"value\" title=\"" + list_arr[value] + "\" value=\"" + list_arr[value] + "\" json=\"" + list_arr[value] + "\">" + list_arr[value] + "<br>";
-						result+="</td>";
-						result+="</tr>";
+						result.append("<tr id=\"ecp_").append(name).append("_").append(index).append("\" style=\"white-space:nowrap\">");
+						result.append("<td>");
+						result.append("<input type=\"checkbox\" name=\"value\" title=\"").append(list_arr[value]).append("\" value=\"").append(list_arr[value])
+							.append("\" json=\"").append(list_arr[value]).append("\">").append(list_arr[value]).append("<br>");
+						result.append("</td>");
+						result.append("</tr>");
 						index=index + 1;
 					}
-					result+="</table>";
-					result+="</div>";
-					result+="<script>";
-					result+="<![CDATA[  ";
-					result+="(function() {";
-					result+="var f = function() {";
-					result+="var height = 0;";
-					result+="var maxCount = " + index + ";";
-					result+="if(maxCount > " + this.visibleItemCount + ") {";
-					result+="maxCount = " + this.visibleItemCount;
-					result+="}";
+					result.append("</table>");
+					result.append("</div>");
+					result.append("<script>");
+					result.append("<![CDATA[  ");
+					result.append("(function() {");
+					result.append("var f = function() {");
+					result.append("var height = 0;");
+					result.append("var maxCount = ").append(index).append(";");
+					result.append("if(maxCount > ").append(this.visibleItemCount).append(") {");
+					result.append("maxCount = ").append(this.visibleItemCount);
+					result.append("}");
 	  			
-					result+="if(maxCount > 0 && document.getElementById(\"ecp_" + name +"_0\").offsetHeight !=0) {";
-		  			result+="for(var i=0; i< maxCount; i++) {";
-		  			result+="height += document.getElementById(\"ecp_" + name + "_\" + i).offsetHeight + 3;";
-		  			result+="}";
-					result+="}";
-					result+="else {";
-	  				result+="height = maxCount * 25.5;";
-					result+="}";
-					result+="height = Math.floor(height);";
-					result+="document.getElementById(\"ecp_" + name + "\").style.height = height + \"px\";";
-					result+="};";
+					result.append("if(maxCount > 0 && document.getElementById(\"ecp_").append(name).append("_0\").offsetHeight !=0) {");
+		  			result.append("for(var i=0; i< maxCount; i++) {");
+		  			result.append("height += document.getElementById(\"ecp_").append(name).append("_\" + i).offsetHeight + 3;");
+		  			result.append("}");
+					result.append("}");
+					result.append("else {");
+	  				result.append("height = maxCount * 25.5;");
+					result.append("}");
+					result.append("height = Math.floor(height);");
+					result.append("document.getElementById(\"ecp_").append(name).append("\").style.height = height + \"px\";");
+					result.append("};");
 	  		
-					result+="f();";
-					result+="})();";
-					result+="]]>  		";
-					result+="</script>";
-				
-							
+					result.append("f();");
+					result.append("})();");
+					result.append("]]>  		");
+					result.append("</script>");
 				}
 				
-				
-				return result;
+				return result.toString();
 			}
 			catch(Exception e) {
-
+				LOGGER.log(Level.WARNING, "Failed to compute the choices of " + getName() + " for " + src_name, e);
 			}
 		}
 		
 		return "<select name=\"value\"><option value=\"select\">Select</option></select>";
 	}
 	
-	private List<String> getRole(String role_level)
-	{
-		List<String> assignedRoles = new ArrayList<String>();
-		try {
-			// get logged-in user id
-			String userId = User.current().getId();
-
-			// get assigned role(s)
-			AuthorizationStrategy authStrategy = Hudson.getInstance().getAuthorizationStrategy();
-			User user = Hudson.getInstance().getUser(userId);
-
-			if (authStrategy instanceof RoleBasedAuthorizationStrategy) {
-				RoleBasedAuthorizationStrategy roleBasedAuthStrategy = (RoleBasedAuthorizationStrategy) authStrategy;
-				SortedMap<Role, Set<String>> globalRoles = roleBasedAuthStrategy.getGrantedRoles(role_level);
-				for (Map.Entry<Role, Set<String>> entry : globalRoles.entrySet()) {         
-					Set<String> set = entry.getValue();
-						if (set.contains(userId)) {
-							String role = entry.getKey().getName();
-							assignedRoles.add(role);
-							}                
-				}
-			}
-		
-		}
-		catch(Exception e){
-		}
-		finally{
-			return assignedRoles;
-		}
-	}
-	
-	private List<String> getAllRoles()
-	{
-		List<String> allRoles = new ArrayList<String>();
-		
-		allRoles = getRole("globalRoles");
-		allRoles.addAll(getRole("projectRoles"));
-		List<String> uniqueList = new ArrayList<String>();
-		
-		for(String value : allRoles)
-		{
-			if (!uniqueList.contains(value))
-			{
-				uniqueList.add(value);
-			}
-		}
-		return uniqueList;
-	}
-	
 	// note that computeValue is not called by multiLevel.jelly
 	private String computeValue(String value, String propertyFilePath, String propertyKey, String projectName) {
-		List<String> allRoles = getAllRoles();
 		String modedContent = "Select,";
 		if(!StringUtils.isBlank(propertyFile) && !StringUtils.isBlank(propertyKey)) {
 			try {
-
-				Project project = new Project();
-				Property property = new Property();
-				property.setProject(project);
-
-				File propertyFile = new File(propertyFilePath);
-				if(propertyFile.exists()) {
-					property.setFile(propertyFile);
-				}
-				else {
-					URL propertyFileUrl = new URL(propertyFilePath);
-					property.setUrl(propertyFileUrl);
-				}
-				property.execute();		
+				Map<String, String> properties = loadProperties(propertyFilePath);
 				if( (this.svnPath) || (!this.roleBasedFilter) )
 				{
-					modedContent += project.getProperty(propertyKey);
+					modedContent += properties.get(propertyKey);
 					return modedContent;
 				}
 				else
 				{
-					String[] actualContent = project.getProperty(propertyKey).split(",");
-					if (allRoles.contains("admin")){
-						modedContent += project.getProperty(propertyKey);
-					}
-					else
-					{
-						for (String val : actualContent) {
-							if(projectName.isEmpty()) {
-								if (allRoles.contains(val)){
-									modedContent += val + ",";
-								}
-							}
-							else {
-								if (allRoles.contains(projectName + "_" + val)){
-									modedContent += val + ",";
-								}
-								
-							}
-						}				
-					}
+					modedContent = filterByRole(propertyFilePath + '\n' + propertyKey, properties.get(propertyKey), projectName, true);
 				}
 			}
 			catch(Exception e) {
-				e.printStackTrace();
+				LOGGER.log(Level.WARNING, "Failed to load the choices of " + getName() + " from " + propertyFilePath, e);
 			}
 		}
 		else if(!StringUtils.isBlank(value)) {
-			if( (this.svnPath) || (!this.roleBasedFilter) )
-			{
-				 modedContent = value;
+			try {
+				if( (this.svnPath) || (!this.roleBasedFilter) )
+				{
+					 modedContent = loadValue(value);
+				}
+				else
+				{
+					modedContent = filterByRole(null, loadValue(value), projectName, false);
+				}
 			}
-			else
-			{
-				String[] actualContent = value.split(",");
-				for (String val : actualContent) {
-					if(projectName.isEmpty()) {
-						if (allRoles.contains(val)){
-							modedContent += val + ",";
-						}
-					}
-					else {
-						if (allRoles.contains(projectName + "_" + val)){
-							modedContent += val + ",";
-						}
-						
-					}
-				}			
+			catch(IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to load the inline choices of " + getName(), e);
 			}
 		}
 		return modedContent;
 	}
 
+	/**
+	 * Returns "Select," followed by the choices the current user may see.
+	 * Choices read from a property file are all visible to the admin role.
+	 *
+	 * @param source the property file and key the choices were read from, or
+	 *        null if they were configured inline
+	 */
+	private String filterByRole(String source, String content, String projectName, boolean adminSeesAll) {
+		ChoiceMetrics.Sample sample = startSample(ChoiceMetrics.Stage.ROLE_FILTER);
+		try {
+			Set<String> allRoles = RoleCache.getCurrentUserRoles();
+			if (adminSeesAll && allRoles.contains("admin")){
+				return "Select," + content;
+			}
+			return FilteredChoiceCache.get(source, content, projectName, allRoles);
+		}
+		finally {
+			sample.stop();
+		}
+	}
+
 	@Override
 	public String getType() {
 		return type;
@@ -617,6 +620,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	
 	public void setProjectName(String projectName) {
 		this.projectName = projectName;
+		effectiveChoices = null;
 	}
 	
 	public String getSvnUrl() {
@@ -644,7 +648,11 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	}
 
 	public String getEffectiveDefaultValue() {
-		return computeValue(defaultValue, defaultPropertyFile, defaultPropertyKey, projectName);
+		return RequestMemo.get(this, "effectiveDefaultValue", new RequestMemo.Computation<String>() {
+			String compute() {
+				return computeValue(defaultValue, defaultPropertyFile, defaultPropertyKey, projectName);
+			}
+		});
 	}
 
 	public String getDefaultValue() {
@@ -661,6 +669,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 
 	public void setPropertyFile(String propertyFile) {
 		this.propertyFile = propertyFile;
+		effectiveChoices = null;
 	}
 
 	public String getDefaultPropertyKey() {
@@ -672,105 +681,265 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	}
 
 	public String getEffectiveValue() {
-		return computeValue(value, propertyFile, propertyKey, projectName);
+		return RequestMemo.get(this, "effectiveValue", new RequestMemo.Computation<String>() {
+			String compute() {
+				return getEffectiveChoices().getValue();
+			}
+		});
 	}
-	
-	private ArrayList<Integer> columnIndicesForDropDowns(String[] headerColumns)
-	{
-		ArrayList<Integer> columnIndicesForDropDowns = new ArrayList<Integer>();
-		
-		String[] dropDownNames = value.split(",");
 
-		for (String dropDownName : dropDownNames)
-		{
-			for (int i = 0; i < headerColumns.length; ++i)
-			{
-				if (headerColumns[i].equals(dropDownName))
-				{
-					columnIndicesForDropDowns.add(new Integer(i));
+	/**
+	 * Returns the effective value, recomputing it only if the property file
+	 * changed or the current user has different roles than the last one.
+	 */
+	ChoiceSet getEffectiveChoices() {
+		Map<String, String> properties = null;
+		if(!StringUtils.isBlank(propertyFile) && !StringUtils.isBlank(propertyKey)) {
+			try {
+				properties = loadProperties(propertyFile);
+			}
+			catch(IOException e) {
+				return new ChoiceSet(null, null, computeValue(value, propertyFile, propertyKey, projectName));
+			}
+		}
+		Set<String> roles = (svnPath || !roleBasedFilter) ? null : RoleCache.getCurrentUserRoles();
+
+		ChoiceSet choices = effectiveChoices;
+		if(choices == null || !choices.isFor(properties, roles)) {
+			// concurrent requests seeing the same change compute the value once
+			synchronized(this) {
+				choices = effectiveChoices;
+				if(choices == null || !choices.isFor(properties, roles)) {
+					choices = ChoiceSet.share(new ChoiceSet(properties, roles, computeValue(value, propertyFile, propertyKey, projectName)));
+					effectiveChoices = choices;
 				}
 			}
 		}
-		
-		return columnIndicesForDropDowns;
+		return choices;
 	}
 	
-	LinkedHashMap<String, LinkedHashSet<String>> calculateChoicesByDropdownId() throws Exception
-	{
-		List<String[]> fileLines =
-			new CSVReader(new FileReader(propertyFile), '\t').readAll();
-
-		if (fileLines.size() < 2)
-		{
-			throw new Exception("Multi level tab delimited file must have at least 2 "
-							+ "lines (one for the header, and one or more for the data)");
-		}
+	/**
+	 * Whether index.jelly renders a search box over a page of choices instead
+	 * of every choice.
+	 */
+	public boolean isTypeAhead() {
+		return isTypeAhead(getEffectiveChoices());
+	}
 
-		ArrayList<Integer> columnIndicesForDropDowns =
-						columnIndicesForDropDowns(fileLines.get(0));
-		
-		List<String[]> dataLines = fileLines.subList(1, fileLines.size());
+	private boolean isTypeAhead(ChoiceSet effectiveChoices) {
+		return (PARAMETER_TYPE_SINGLE_SELECT.equals(type) || PARAMETER_TYPE_MULTI_SELECT.equals(type))
+				&& effectiveChoices.getIndex().size() > TYPE_AHEAD_THRESHOLD;
+	}
 
-		LinkedHashMap<String, LinkedHashSet<String>> choicesByDropdownId =
-						new LinkedHashMap<String, LinkedHashSet<String>>();
+	/**
+	 * Returns the choices rendered initially in type-ahead mode: the first page
+	 * of choices followed by any default values not on it.
+	 */
+	public List<String> getTypeAheadChoices() {
+		return getTypeAheadChoices(getEffectiveChoices());
+	}
 
-		String prefix = getName() + " dropdown MultiLevelMultiSelect 0";
-		choicesByDropdownId.put(prefix, new LinkedHashSet<String>());
+	private List<String> getTypeAheadChoices(ChoiceSet effectiveChoices) {
+		List<String> choices = new ArrayList<String>(effectiveChoices.getIndex().search("", 0, SEARCH_PAGE_SIZE).choices);
+		Map<String, Boolean> defaultValueMap = getDefaultValueMap();
+		if(defaultValueMap != null) {
+			for(String defaultValue: defaultValueMap.keySet()) {
+				if(!choices.contains(defaultValue) && effectiveChoices.contains(defaultValue)) {
+					choices.add(defaultValue);
+				}
+			}
+		}
+		return choices;
+	}
 
-		for (int i=0; i < columnIndicesForDropDowns.size(); ++i)
-		{
-			String prettyCurrentColumnName = value.split(",")[i];
-			prettyCurrentColumnName = prettyCurrentColumnName.toLowerCase();
-			prettyCurrentColumnName = prettyCurrentColumnName.replace("_", " ");
+	/**
+	 * Returns the given page of the choices matching the query as
+	 * {"choices":[...],"page":n,"pageSize":n,"total":n}. Choices starting with
+	 * the query come first.
+	 */
+	@JavaScriptMethod
+	public JSONObject searchChoices(String query, int page) {
+		page = Math.max(page, 0);
+		int offset = (int) Math.min((long) page * SEARCH_PAGE_SIZE, Integer.MAX_VALUE);
+		ChoiceIndex.Page matches = getEffectiveChoices().getIndex().search(query, offset, SEARCH_PAGE_SIZE);
+		JSONObject result = new JSONObject();
+		JSONArray choices = new JSONArray();
+		choices.addAll(matches.choices);
+		result.put("choices", choices);
+		result.put("page", page);
+		result.put("pageSize", SEARCH_PAGE_SIZE);
+		result.put("total", matches.total);
+		return result;
+	}
 
-			for (String[] dataLine : dataLines)
-			{
-				String priorLevelDropdownId = prefix;
-				String currentLevelDropdownId = prefix;
+	/**
+	 * Returns tasks loading every source this parameter reads, keyed by what
+	 * they load, so parameters sharing a source share its task. Parameters
+	 * bound to another field also load what each of their choices selects,
+	 * the SVN listing or the property file next to the parameter's own, if
+	 * boundChoices is set.
+	 */
+	Map<String, Callable<Void>> getWarmUpTasks(Job<?, ?> job, boolean boundChoices) {
+		if(ownerName == null) {
+			ownerName = job.getFullName();
+		}
 
-				int column = 0;
-				for (int j=0; j <= i; ++j)
-				{
-					column = columnIndicesForDropDowns.get(j);
+		Map<String, Callable<Void>> tasks = new LinkedHashMap<String, Callable<Void>>();
+		if(PARAMETER_TYPE_MULTI_LEVEL_SINGLE_SELECT.equals(type) || PARAMETER_TYPE_MULTI_LEVEL_MULTI_SELECT.equals(type)) {
+			tasks.put("multi-level\n" + propertyFile + "\n" + value, new Callable<Void>() {
+				public Void call() throws Exception {
+					getMultiLevelIndex();
+					return null;
+				}
+			});
+		}
+		else if(!StringUtils.isBlank(propertyFile) && !StringUtils.isBlank(propertyKey)) {
+			tasks.put("properties\n" + propertyFile, loadPropertiesTask(propertyFile));
+		}
+		if(!StringUtils.isBlank(defaultPropertyFile) && !StringUtils.isBlank(defaultPropertyKey)) {
+			tasks.put("properties\n" + defaultPropertyFile, loadPropertiesTask(defaultPropertyFile));
+		}
 
-					if (j < i)
-					{
-						priorLevelDropdownId += " " + dataLine[column];
+		if(boundChoices && !StringUtils.isBlank(bindFieldName)) {
+			tasks.put("bound\n" + svnPath + "\n" + svnUrl + "\n" + svnUserName + "\n" + propertyFile + "\n" + propertyKey
+							+ "\n" + value, new Callable<Void>() {
+				public Void call() throws Exception {
+					String choices = getUnfilteredValue();
+					if(choices == null) {
+						return null;
 					}
-					currentLevelDropdownId += " " + dataLine[column];
-				}					
-				if (i != columnIndicesForDropDowns.size() - 1)
-				{
-					choicesByDropdownId.put(currentLevelDropdownId, new LinkedHashSet<String>());
+					// the same paths index.jelly asks for when a choice is selected
+					for(String choice: choices.split(",")) {
+						if(StringUtils.isBlank(choice) || "Select".equals(choice) || "trunk".equals(choice)) {
+							continue;
+						}
+						if(svnPath) {
+							getSvnUrlListContent(svnUrl, svnUserName, svnPassword, choice);
+						}
+						else {
+							String path = getBoundPropertyFile(choice);
+							if(path != null) {
+								try {
+									loadProperties(path);
+								}
+								catch(IOException e) {
+									// not every choice needs a file
+								}
+							}
+						}
+					}
+					return null;
 				}
-				LinkedHashSet<String> choicesForPriorDropdown
-								= choicesByDropdownId.get(priorLevelDropdownId);
-				choicesForPriorDropdown.add("Select a " + prettyCurrentColumnName
-																		+ "...");
-				choicesForPriorDropdown.add(dataLine[column]);
-			}				
+			});
+		}
+		return tasks;
+	}
+
+	private Callable<Void> loadPropertiesTask(final String path) {
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				loadProperties(path);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Returns the comma separated choices before role filtering, or null.
+	 */
+	private String getUnfilteredValue() throws IOException {
+		if(!StringUtils.isBlank(propertyFile) && !StringUtils.isBlank(propertyKey)) {
+			return loadProperties(propertyFile).get(propertyKey);
 		}
+		return StringUtils.isBlank(value) ? value : loadValue(value);
+	}
 
-		return choicesByDropdownId;
+	/**
+	 * Returns what the page shows of this parameter for the current user as
+	 * {"name":...,"type":...,"choices":[...],"defaultValue":...}. Multi-level
+	 * parameters return the choices of their first dropdown; type-ahead
+	 * parameters return their first page and add "total".
+	 */
+	JSONObject resolve() {
+		JSONObject result = new JSONObject();
+		result.put("name", getName());
+		result.put("type", type);
+		JSONArray choices = new JSONArray();
+		if(PARAMETER_TYPE_MULTI_LEVEL_SINGLE_SELECT.equals(type) || PARAMETER_TYPE_MULTI_LEVEL_MULTI_SELECT.equals(type)) {
+			try {
+				choices.addAll(getMultiLevelIndex().getChoices(new String[0]));
+			}
+			catch(Exception e) {
+				result.put("error", String.valueOf(e));
+			}
+		}
+		else {
+			ChoiceSet effectiveChoices = getEffectiveChoices();
+			if(isTypeAhead(effectiveChoices)) {
+				choices.addAll(getTypeAheadChoices(effectiveChoices));
+				result.put("total", effectiveChoices.getIndex().size());
+			}
+			else if(effectiveChoices.getValue() != null) {
+				choices.addAll(Arrays.asList(effectiveChoices.getValue().split(",")));
+			}
+		}
+		result.put("choices", choices);
+		result.put("defaultValue", getEffectiveDefaultValue());
+		return result;
+	}
+
+	MultiLevelIndex getMultiLevelIndex() throws Exception
+	{
+		ChoiceMetrics.Sample sample = startSample(ChoiceMetrics.Stage.MULTI_LEVEL_INDEX);
+		ChoiceSourceCache.Consumer previous = ChoiceSourceCache.setConsumer(this, getConsumerName());
+		try {
+			return MultiLevelSource.getIndex(propertyFile, value);
+		}
+		catch(Exception e) {
+			sample.fail();
+			throw e;
+		}
+		finally {
+			ChoiceSourceCache.restoreConsumer(previous);
+			sample.stop();
+		}
+	}
+
+	/**
+	 * Returns the choices of the first dropdown of a multi-level parameter,
+	 * rendered inline so the page needs no round-trip to show it.
+	 */
+	public String getMultiLevelRootChoices() throws Exception
+	{
+		return StringUtils.join(getMultiLevelIndex().getChoices(new String[0]), ",");
+	}
+
+	/**
+	 * Returns the choices of the dropdown that follows the given selected values,
+	 * e.g. ["HG18","Multiple Myeloma"], or an empty array when the last value is
+	 * a leaf. Used by multiLevel.jelly to load each level on demand.
+	 */
+	@JavaScriptMethod
+	public JSONArray computeMultiLevelChoices(String[] path)
+	{
+		JSONArray choices = new JSONArray();
+		try {
+			choices.addAll(getMultiLevelIndex().getChoices(path == null ? new String[0] : path));
+		}
+		catch(Exception e) {
+			LOGGER.log(Level.WARNING, "Failed to load the multi-level choices of " + getName() + " from " + propertyFile, e);
+		}
+		return choices;
+	}
+
+	private String getMultiLevelDropdownPrefix()
+	{
+		return getName() + " dropdown MultiLevelMultiSelect 0";
 	}
 	
 	public String getMultiLevelDropdownIds() throws Exception
 	{
-		String dropdownIds = new String();
-		
-		LinkedHashMap<String, LinkedHashSet<String>> choicesByDropdownId = 
-						calculateChoicesByDropdownId();
-		
-		for (String id : choicesByDropdownId.keySet())
-		{
-			if (dropdownIds.length() > 0)
-			{
-				dropdownIds += ",";
-			}
-			dropdownIds += id;
-		}
-				
-		return dropdownIds;
+		return getMultiLevelIndex().getDropdownIds(getMultiLevelDropdownPrefix());
 		
 		/* dropdownIds is of a form like this:
 		return name + " dropdown MultiLevelMultiSelect 0," 
@@ -788,26 +957,9 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	
 	public Map<String, String> getChoicesByDropdownId() throws Exception
 	{
-		LinkedHashMap<String, LinkedHashSet<String>> choicesByDropdownId = 
-			calculateChoicesByDropdownId();
-		
-		Map<String, String> collapsedMap = new LinkedHashMap<String, String>();
-		
-		for (String dropdownId : choicesByDropdownId.keySet())
-		{
-			String choices = new String();
-			for (String choice : choicesByDropdownId.get(dropdownId))
-			{
-				if (choices.length() > 0)
-				{
-					choices += ",";
-				}
-				choices += choice;
-			}
-			
-			collapsedMap.put(dropdownId, choices);
-		}
-				
+		Map<String, String> collapsedMap =
+			getMultiLevelIndex().getChoicesByDropdownId(getMultiLevelDropdownPrefix());
+
 		/* collapsedMap is of a form like this:
 		collapsedMap.put(name + " dropdown MultiLevelMultiSelect 0", "Select a genome...,HG18,ZZ23");
 		collapsedMap.put(name + " dropdown MultiLevelMultiSelect 0 HG18", "Select a source...,Diffuse large B-cell lymphoma,Multiple Myeloma");
@@ -830,6 +982,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 
 	public void setValue(String value) {
 		this.value = value;
+		effectiveChoices = null;
 	}
 
 	public String getPropertyKey() {
@@ -838,6 +991,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 
 	public void setPropertyKey(String propertyKey) {
 		this.propertyKey = propertyKey;
+		effectiveChoices = null;
 	}
 
 	public String getDefaultPropertyFile() {
@@ -858,6 +1012,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 
 	public void setSvnPath(boolean svnPath) {
 		this.svnPath = svnPath;
+		effectiveChoices = null;
 	}
 	
 	public boolean isRoleBasedFilter() {
@@ -866,6 +1021,7 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 
 	public void setRoleBasedFilter(boolean roleBasedFilter) {
 		this.roleBasedFilter = roleBasedFilter;
+		effectiveChoices = null;
 	}
 	
 	public int getVisibleItemCount() {
@@ -889,6 +1045,10 @@ public class ExtendedChoiceParameterDefinition extends ParameterDefinition {
 	}
 
 	public Map<String, Boolean> getDefaultValueMap() {
-		return computeDefaultValueMap();
+		return RequestMemo.get(this, "defaultValueMap", new RequestMemo.Computation<Map<String, Boolean>>() {
+			Map<String, Boolean> compute() {
+				return computeDefaultValueMap();
+			}
+		});
 	}
 }
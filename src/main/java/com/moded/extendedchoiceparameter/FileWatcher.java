@@ -0,0 +1,213 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+/**
+ * Notifies listeners when local files change, using a WatchService over their
+ * directories.
+ *
+ * WatchService needs Java 7; on older runtimes {@link #watch} always returns
+ * false and callers keep checking the files themselves.
+ */
+final class FileWatcher {
+
+	private static final Logger LOGGER = Logger.getLogger(FileWatcher.class.getName());
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	private FileWatcher() {
+	}
+
+	/**
+	 * Calls the listener whenever the given file is created, modified or
+	 * deleted. A listener registered again under the same id for the same file
+	 * replaces the previous one.
+	 *
+	 * @return whether the file is watched
+	 */
+	static boolean watch(File file, String id, Runnable listener) {
+		if(!AVAILABLE) {
+			return false;
+		}
+		try {
+			return Service.get().watch(file, id, listener);
+		}
+		catch(IOException e) {
+			LOGGER.log(Level.FINE, "Cannot watch " + file, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops calling the listener registered under the given id for the given
+	 * file. A directory is no longer watched once none of its files has a
+	 * listener.
+	 */
+	static void unwatch(File file, String id) {
+		if(!AVAILABLE) {
+			return;
+		}
+		Service service = Service.getIfStarted();
+		if(service != null) {
+			service.unwatch(file, id);
+		}
+	}
+
+	private static boolean isAvailable() {
+		if(Boolean.getBoolean(FileWatcher.class.getName() + ".disabled")) {
+			return false;
+		}
+		try {
+			Class.forName("java.nio.file.WatchService");
+			return true;
+		}
+		catch(ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	@IgnoreJRERequirement
+	private static final class Service implements Runnable {
+		private static Service instance;
+
+		private final WatchService watchService;
+
+		private final ConcurrentMap<Path, WatchKey> directories = new ConcurrentHashMap<Path, WatchKey>();
+
+		private final ConcurrentMap<Path, ConcurrentMap<String, Runnable>> listeners =
+						new ConcurrentHashMap<Path, ConcurrentMap<String, Runnable>>();
+
+		private Service(WatchService watchService) {
+			this.watchService = watchService;
+		}
+
+		static synchronized Service get() throws IOException {
+			if(instance == null) {
+				instance = new Service(FileSystems.getDefault().newWatchService());
+				Thread thread = new Thread(instance, "Extended choice parameter file watcher");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			return instance;
+		}
+
+		static synchronized Service getIfStarted() {
+			return instance;
+		}
+
+		synchronized boolean watch(File file, String id, Runnable listener) throws IOException {
+			Path path = file.toPath().toAbsolutePath().normalize();
+			Path dir = path.getParent();
+			if(dir == null) {
+				return false;
+			}
+			if(!directories.containsKey(dir)) {
+				directories.put(dir, dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+			}
+
+			ConcurrentMap<String, Runnable> fileListeners = listeners.get(path);
+			if(fileListeners == null) {
+				fileListeners = new ConcurrentHashMap<String, Runnable>();
+				listeners.put(path, fileListeners);
+			}
+			fileListeners.put(id, listener);
+			return true;
+		}
+
+		synchronized void unwatch(File file, String id) {
+			Path path = file.toPath().toAbsolutePath().normalize();
+			ConcurrentMap<String, Runnable> fileListeners = listeners.get(path);
+			if(fileListeners == null || fileListeners.remove(id) == null || !fileListeners.isEmpty()) {
+				return;
+			}
+			listeners.remove(path);
+
+			Path dir = path.getParent();
+			for(Path watched: listeners.keySet()) {
+				if(dir.equals(watched.getParent())) {
+					return;
+				}
+			}
+			WatchKey key = directories.remove(dir);
+			if(key != null) {
+				key.cancel();
+			}
+		}
+
+		public void run() {
+			while(true) {
+				WatchKey key;
+				try {
+					key = watchService.take();
+				}
+				catch(InterruptedException e) {
+					return;
+				}
+				catch(ClosedWatchServiceException e) {
+					return;
+				}
+
+				Path dir = (Path) key.watchable();
+				for(WatchEvent<?> event: key.pollEvents()) {
+					if(event.kind() == OVERFLOW) {
+						notifyUnder(dir);
+					}
+					else {
+						notify(listeners.get(dir.resolve((Path) event.context())));
+					}
+				}
+				if(!key.reset()) {
+					// the directory is gone; it is registered again with the next watch
+					directories.remove(dir, key);
+					notifyUnder(dir);
+				}
+			}
+		}
+
+		private void notifyUnder(Path dir) {
+			for(Map.Entry<Path, ConcurrentMap<String, Runnable>> e: listeners.entrySet()) {
+				if(dir.equals(e.getKey().getParent())) {
+					notify(e.getValue());
+				}
+			}
+		}
+
+		private void notify(ConcurrentMap<String, Runnable> fileListeners) {
+			if(fileListeners == null) {
+				return;
+			}
+			for(Runnable listener: fileListeners.values()) {
+				try {
+					listener.run();
+				}
+				catch(RuntimeException e) {
+					LOGGER.log(Level.WARNING, "File change listener failed", e);
+				}
+			}
+		}
+	}
+}
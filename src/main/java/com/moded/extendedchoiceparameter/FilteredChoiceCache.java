@@ -0,0 +1,170 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Caches choice lists filtered by role, so users with the same roles share
+ * one precomputed list.
+ *
+ * Entries are keyed by the unfiltered choices, the project name and the role
+ * set, and are kept in a bounded LRU map. The cache remembers the choices last
+ * read from each source; once a source yields other choices, the entries for
+ * its previous choices are dropped. Role sets are interned by
+ * {@link RoleCache}, so they are compared by identity, and the whole cache is
+ * dropped when the role configuration changes. Users with the same roles
+ * asking for a list that is not cached yet share one filtering.
+ */
+final class FilteredChoiceCache {
+
+	/**
+	 * Maximum number of filtered lists kept in memory.
+	 */
+	static final int MAX_ENTRIES = Integer.getInteger(FilteredChoiceCache.class.getName() + ".maxEntries", 1000);
+
+	private static final Map<Key, String> entries = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * The choices last read from each source, guarded by {@link #entries}.
+	 */
+	private static final Map<String, String> currentChoices = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static final SingleFlight<Key> filters = new SingleFlight<Key>();
+
+	private FilteredChoiceCache() {
+	}
+
+	/**
+	 * Returns "Select," followed by the comma terminated choices the given roles
+	 * may see: a choice is visible if it, or projectName_choice when a project
+	 * name is set, is one of the role names.
+	 *
+	 * @param source identifies where the choices were read from, or null if
+	 *        they were configured inline
+	 */
+	static String get(final String source, String choices, String projectName, Set<String> roles) {
+		final Key key = new Key(source, choices, StringUtils.defaultString(projectName), roles);
+		String filtered;
+		synchronized(entries) {
+			if(source != null) {
+				String previous = currentChoices.put(source, choices);
+				if(previous != null && !previous.equals(choices)) {
+					removeStale(source, choices);
+				}
+			}
+			filtered = entries.get(key);
+		}
+		if(filtered != null) {
+			ChoiceMetrics.cacheHit();
+			return filtered;
+		}
+
+		ChoiceMetrics.cacheMiss();
+		try {
+			return filters.call(key, new Callable<String>() {
+				public String call() {
+					String filtered = filter(key.choices.split(","), key.projectName, key.roles);
+					synchronized(entries) {
+						// unless the source changed again meanwhile
+						if(source == null || key.choices.equals(currentChoices.get(source))) {
+							entries.put(key, filtered);
+						}
+					}
+					return filtered;
+				}
+			});
+		}
+		catch(ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return filter(choices.split(","), key.projectName, roles);
+		}
+	}
+
+	static void clear() {
+		synchronized(entries) {
+			entries.clear();
+			currentChoices.clear();
+		}
+	}
+
+	/**
+	 * Drops the entries of the given source that were filtered from other than
+	 * its current choices. Must hold the lock on {@link #entries}.
+	 */
+	private static void removeStale(String source, String choices) {
+		for(Iterator<Key> i = entries.keySet().iterator(); i.hasNext();) {
+			Key key = i.next();
+			if(source.equals(key.source) && !choices.equals(key.choices)) {
+				i.remove();
+			}
+		}
+	}
+
+	private static String filter(String[] values, String projectName, Set<String> roles) {
+		String rolePrefix = projectName.length() == 0 ? "" : projectName + "_";
+		StringBuilder filtered = new StringBuilder("Select,");
+		for(String val : values) {
+			if(roles.contains(rolePrefix + val)) {
+				filtered.append(val).append(',');
+			}
+		}
+		return filtered.toString();
+	}
+
+	private static final class Key {
+		final String source;
+		final String choices;
+		final String projectName;
+		final Set<String> roles;
+
+		Key(String source, String choices, String projectName, Set<String> roles) {
+			this.source = source;
+			this.choices = choices;
+			this.projectName = projectName;
+			this.roles = roles;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return roles == other.roles && projectName.equals(other.projectName) && choices.equals(other.choices)
+							&& StringUtils.equals(source, other.source);
+		}
+
+		@Override
+		public int hashCode() {
+			return (choices.hashCode() * 31 + projectName.hashCode()) * 31 + System.identityHashCode(roles);
+		}
+	}
+}
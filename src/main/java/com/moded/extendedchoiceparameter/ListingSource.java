@@ -0,0 +1,41 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.IOException;
+
+/**
+ * Source of directory listings of a repository, the choices of parameters
+ * with "svn path" set.
+ *
+ * The registered source is found by repository URL and then asked for a
+ * source reading that repository with the parameter's credentials with
+ * {@link #forRepository(String, String, String)}; only the sources it returns
+ * are loaded. Their locations are paths within the repository and their
+ * values are the names of the entries, each followed by a comma.
+ */
+public abstract class ListingSource extends ChoiceSource<String> {
+
+	/**
+	 * Returns a source listing directories of the given repository as the
+	 * given user. Sources of other repositories or credentials must return
+	 * different ids.
+	 */
+	public abstract ListingSource forRepository(String url, String userName, String password);
+
+	@Override
+	public long getSize(String listing) {
+		return 40 + 2L * listing.length();
+	}
+
+	/**
+	 * Returns the entries of the given directory of the given repository as a
+	 * comma separated list.
+	 */
+	static String getListing(String url, String userName, String password, String path) throws IOException {
+		return ChoiceSourceCache.get(find(ListingSource.class, url).forRepository(url, userName, password), path);
+	}
+}
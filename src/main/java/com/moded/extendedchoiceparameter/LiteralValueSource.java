@@ -0,0 +1,38 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+
+/**
+ * Inline values taken as they are configured.
+ */
+@Extension(ordinal = -1000)
+public class LiteralValueSource extends ValueSource {
+
+	@Override
+	public String getDisplayName() {
+		return "Inline";
+	}
+
+	/**
+	 * The content is the location itself, so it never changes.
+	 */
+	@Override
+	public Object getVersion(String value) {
+		return value;
+	}
+
+	@Override
+	public String load(String value, String previous) {
+		return value;
+	}
+
+	@Override
+	public long getRecheckInterval() {
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Property;
+
+/**
+ * Property files on the Jenkins master's file system, read by Ant and
+ * fingerprinted by their last modification time and size. Where the runtime
+ * supports it, files are watched and only reloaded when they change.
+ */
+@Extension(ordinal = -100)
+public class LocalPropertySource extends PropertySource {
+
+	/**
+	 * How long a file is trusted not to have changed since it was last
+	 * checked, in milliseconds.
+	 */
+	static final long RECHECK_INTERVAL = Long.getLong(LocalPropertySource.class.getName() + ".recheckInterval", 1000L);
+
+	@Override
+	public boolean handles(String location) {
+		return new File(location).isFile();
+	}
+
+	/**
+	 * Returns the canonical path, so that relative paths, ".." and symbolic
+	 * links share the value of the file they name.
+	 */
+	@Override
+	public String normalize(String location) throws IOException {
+		return new File(location).getCanonicalPath();
+	}
+
+	@Override
+	public Object getVersion(String location) {
+		File file = new File(location);
+		return file.lastModified() + ":" + file.length();
+	}
+
+	@Override
+	public Map<String, String> load(String location, Map<String, String> previous) {
+		File file = new File(location);
+		ChoiceMetrics.bytesRead(file.length());
+		Project project = new Project();
+		Property property = new Property();
+		property.setProject(project);
+		property.setFile(file);
+		property.execute();
+		return toMap(project);
+	}
+
+	@Override
+	public long getRecheckInterval() {
+		return RECHECK_INTERVAL;
+	}
+
+	@Override
+	public File getWatchedFile(String location) {
+		return new File(location);
+	}
+}
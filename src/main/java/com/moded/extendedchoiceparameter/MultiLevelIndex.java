@@ -0,0 +1,675 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *Copyright (c) 2013 John DiMatteo
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+/**
+ * Immutable tree of the choices of a multi-level parameter, compiled in a
+ * single pass over the rows of its tab delimited file.
+ *
+ * Every node holds the distinct values of the next column, in order of first
+ * appearance. Dropdown ids and choice lists are produced from the tree on
+ * demand, so rendering costs time proportional to the output rather than to
+ * the number of rows times the number of levels.
+ *
+ * Each distinct value is stored once, and nodes are stored as int arrays
+ * indexing into the values, so the tree takes memory proportional to the
+ * number of distinct values and nodes rather than to the length of the
+ * dropdown ids.
+ *
+ * Each compiled tree is also saved under
+ * JENKINS_HOME/dynamic-extended-choice-parameter/multi-level-cache, so after a
+ * restart it is read back instead of parsing the file again, as long as the
+ * file has not changed.
+ */
+public final class MultiLevelIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(MultiLevelIndex.class.getName());
+
+	/**
+	 * Multi-level files are always read as UTF-8, whatever the platform charset.
+	 */
+	static final String CHARSET = "UTF-8";
+
+	/**
+	 * Marks a snapshot file, followed by the version of its format. Snapshots
+	 * of another format are ignored.
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x4543504d;
+
+	private static final int SNAPSHOT_FORMAT = 4;
+
+	/**
+	 * "Select a ..." label of each level, indexed by depth.
+	 */
+	private final String[] selectLabels;
+
+	/**
+	 * Distinct values of all dropdowns, in order of first appearance.
+	 */
+	private final String[] values;
+
+	/**
+	 * Value of each node, as an index into {@link #values}. Nodes are numbered
+	 * breadth first; node 0 is the root, which has no value.
+	 */
+	private final int[] nodeValues;
+
+	/**
+	 * The children of node n are the nodes firstChild[n] to
+	 * firstChild[n + 1] - 1.
+	 */
+	private final int[] firstChild;
+
+	private MultiLevelIndex(String[] selectLabels, String[] values, int[] nodeValues, int[] firstChild) {
+		this.selectLabels = selectLabels;
+		this.values = values;
+		this.nodeValues = nodeValues;
+		this.firstChild = firstChild;
+	}
+
+	/**
+	 * Compiles the rows of the given reader as they are read, so only the tree
+	 * of distinct values is held in memory. Rows that are too short to hold
+	 * every dropdown column are skipped and logged with their line number.
+	 */
+	public static MultiLevelIndex compile(CSVReader reader, String[] dropDownNames, String source) throws Exception {
+		String[] headerColumns = reader.readNext();
+
+		int[] columns = headerColumns == null ? new int[0] : columnIndicesForDropDowns(headerColumns, dropDownNames);
+		int requiredColumns = 0;
+		for (int column : columns)
+		{
+			requiredColumns = Math.max(requiredColumns, column + 1);
+		}
+
+		String[] selectLabels = new String[columns.length];
+		for (int i = 0; i < columns.length; ++i)
+		{
+			String prettyColumnName = dropDownNames[i].toLowerCase().replace("_", " ");
+			selectLabels[i] = "Select a " + prettyColumnName + "...";
+		}
+
+		Map<String, Integer> dictionary = new LinkedHashMap<String, Integer>();
+		NodeBuilder root = new NodeBuilder(-1);
+		int dataLines = 0;
+		int lineNumber = 1;
+		String[] dataLine;
+		while ((dataLine = reader.readNext()) != null)
+		{
+			++lineNumber;
+			if (dataLine.length < requiredColumns)
+			{
+				LOGGER.warning(source + ":" + lineNumber + " has " + dataLine.length
+								+ " columns but at least " + requiredColumns + " are required, skipping it");
+				continue;
+			}
+			++dataLines;
+
+			NodeBuilder node = root;
+			for (int column : columns)
+			{
+				node = node.child(dataLine[column], dictionary);
+			}
+		}
+
+		if (dataLines < 1)
+		{
+			throw new Exception("Multi level tab delimited file must have at least 2 "
+							+ "lines (one for the header, and one or more for the data)");
+		}
+
+		return build(selectLabels, dictionary, root);
+	}
+
+	/**
+	 * Numbers the nodes breadth first, so that the children of each node are
+	 * numbered consecutively.
+	 */
+	private static MultiLevelIndex build(String[] selectLabels, Map<String, Integer> dictionary, NodeBuilder root)
+	{
+		List<NodeBuilder> nodes = new ArrayList<NodeBuilder>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); ++i)
+		{
+			nodes.addAll(nodes.get(i).children.values());
+		}
+
+		int[] nodeValues = new int[nodes.size()];
+		int[] firstChild = new int[nodes.size() + 1];
+		int next = 1;
+		for (int i = 0; i < nodes.size(); ++i)
+		{
+			nodeValues[i] = nodes.get(i).value;
+			firstChild[i] = next;
+			next += nodes.get(i).children.size();
+		}
+		firstChild[nodes.size()] = next;
+		return new MultiLevelIndex(selectLabels, dictionary.keySet().toArray(new String[dictionary.size()]),
+						nodeValues, firstChild);
+	}
+
+	private static int[] columnIndicesForDropDowns(String[] headerColumns, String[] dropDownNames)
+	{
+		List<Integer> columnIndices = new ArrayList<Integer>();
+		for (String dropDownName : dropDownNames)
+		{
+			for (int i = 0; i < headerColumns.length; ++i)
+			{
+				if (headerColumns[i].equals(dropDownName))
+				{
+					columnIndices.add(i);
+				}
+			}
+		}
+
+		int[] result = new int[columnIndices.size()];
+		for (int i = 0; i < result.length; ++i)
+		{
+			result[i] = columnIndices.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the comma separated ids of every dropdown, level by level, each
+	 * id being the prefix followed by the values selected to reach it.
+	 */
+	String getDropdownIds(String prefix)
+	{
+		final StringBuilder dropdownIds = new StringBuilder();
+		visit(prefix, new Visitor() {
+			public void visit(String dropdownId, int depth, int node) {
+				if (dropdownIds.length() > 0)
+				{
+					dropdownIds.append(',');
+				}
+				dropdownIds.append(dropdownId);
+			}
+		});
+		return dropdownIds.toString();
+	}
+
+	/**
+	 * Returns the comma separated choices of every dropdown, keyed by the ids
+	 * returned by {@link #getDropdownIds(String)} and in the same order.
+	 */
+	Map<String, String> getChoicesByDropdownId(String prefix)
+	{
+		final Map<String, String> choicesByDropdownId = new LinkedHashMap<String, String>();
+		visit(prefix, new Visitor() {
+			public void visit(String dropdownId, int depth, int node) {
+				StringBuilder choices = new StringBuilder();
+				if (firstChild[node] < firstChild[node + 1])
+				{
+					choices.append(selectLabels[depth]);
+					for (int child = firstChild[node]; child < firstChild[node + 1]; ++child)
+					{
+						choices.append(',').append(values[nodeValues[child]]);
+					}
+				}
+				choicesByDropdownId.put(dropdownId, choices.toString());
+			}
+		});
+		return choicesByDropdownId;
+	}
+
+	/**
+	 * Returns roughly how many bytes the tree takes in memory.
+	 */
+	long getSize()
+	{
+		long size = 4L * (nodeValues.length + firstChild.length) + 48;
+		for (String value : values)
+		{
+			size += 40 + 2L * value.length();
+		}
+		for (String selectLabel : selectLabels)
+		{
+			size += 40 + 2L * selectLabel.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the choices of the dropdown reached by selecting the given values,
+	 * starting with its "Select a ..." label, or an empty list if the path ends
+	 * at a leaf or does not exist.
+	 */
+	List<String> getChoices(String[] path)
+	{
+		int node = 0;
+		for (String value : path)
+		{
+			node = child(node, value);
+			if (node < 0)
+			{
+				return Collections.emptyList();
+			}
+		}
+
+		int childCount = firstChild[node + 1] - firstChild[node];
+		if (childCount == 0)
+		{
+			return Collections.emptyList();
+		}
+		List<String> choices = new ArrayList<String>(childCount + 1);
+		choices.add(selectLabels[path.length]);
+		for (int child = firstChild[node]; child < firstChild[node + 1]; ++child)
+		{
+			choices.add(values[nodeValues[child]]);
+		}
+		return choices;
+	}
+
+	/**
+	 * Returns the child of the given node with the given value, or -1.
+	 */
+	private int child(int node, String value)
+	{
+		for (int child = firstChild[node]; child < firstChild[node + 1]; ++child)
+		{
+			if (values[nodeValues[child]].equals(value))
+			{
+				return child;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Walks every node that has children, breadth first.
+	 */
+	private void visit(String prefix, Visitor visitor)
+	{
+		int[] nodes = {0};
+		String[] ids = {prefix};
+
+		for (int depth = 0; nodes.length > 0; ++depth)
+		{
+			int nextCount = 0;
+			for (int node : nodes)
+			{
+				for (int child = firstChild[node]; child < firstChild[node + 1]; ++child)
+				{
+					if (firstChild[child] < firstChild[child + 1])
+					{
+						++nextCount;
+					}
+				}
+			}
+
+			int[] nextNodes = new int[nextCount];
+			String[] nextIds = new String[nextCount];
+			int next = 0;
+			for (int i = 0; i < nodes.length; ++i)
+			{
+				visitor.visit(ids[i], depth, nodes[i]);
+				for (int child = firstChild[nodes[i]]; child < firstChild[nodes[i] + 1]; ++child)
+				{
+					if (firstChild[child] < firstChild[child + 1])
+					{
+						nextNodes[next] = child;
+						nextIds[next++] = ids[i] + ' ' + values[nodeValues[child]];
+					}
+				}
+			}
+			nodes = nextNodes;
+			ids = nextIds;
+		}
+	}
+
+	/**
+	 * Writes the tree as its select labels, its values and its two node arrays.
+	 */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(selectLabels.length);
+		for (String selectLabel : selectLabels)
+		{
+			writeString(out, selectLabel);
+		}
+		out.writeInt(values.length);
+		for (String value : values)
+		{
+			writeString(out, value);
+		}
+		out.writeInt(nodeValues.length);
+		for (int nodeValue : nodeValues)
+		{
+			out.writeInt(nodeValue);
+		}
+		for (int first : firstChild)
+		{
+			out.writeInt(first);
+		}
+	}
+
+	/**
+	 * Reads a tree written by {@link #writeTo(DataOutputStream)}, checking that
+	 * every index it holds is in range.
+	 */
+	static MultiLevelIndex readFrom(ByteBuffer in) throws IOException
+	{
+		String[] selectLabels = new String[readCount(in)];
+		for (int i = 0; i < selectLabels.length; ++i)
+		{
+			selectLabels[i] = readString(in);
+		}
+		String[] values = new String[readCount(in)];
+		for (int i = 0; i < values.length; ++i)
+		{
+			values[i] = readString(in);
+		}
+
+		int nodeCount = readCount(in);
+		if (nodeCount < 1 || (long) nodeCount * 2 + 1 > in.remaining() / 4)
+		{
+			throw new IOException("Corrupt snapshot: bad node count " + nodeCount);
+		}
+		int[] nodeValues = new int[nodeCount];
+		int[] firstChild = new int[nodeCount + 1];
+		IntBuffer ints = in.asIntBuffer();
+		ints.get(nodeValues);
+		ints.get(firstChild);
+		in.position(in.position() + (nodeValues.length + firstChild.length) * 4);
+
+		if (nodeValues[0] != -1 || firstChild[nodeCount] != nodeCount)
+		{
+			throw new IOException("Corrupt snapshot: bad root or node count");
+		}
+		for (int node = 0; node < nodeCount; ++node)
+		{
+			if ((node > 0 && (nodeValues[node] < 0 || nodeValues[node] >= values.length))
+							|| firstChild[node] <= node || firstChild[node] > firstChild[node + 1])
+			{
+				throw new IOException("Corrupt snapshot: bad node " + node);
+			}
+		}
+		return new MultiLevelIndex(selectLabels, values, nodeValues, firstChild);
+	}
+
+	/**
+	 * Reads a count of items that take at least four bytes each.
+	 */
+	private static int readCount(ByteBuffer in) throws IOException
+	{
+		int count = readInt(in);
+		if (count < 0 || count > in.remaining() / 4)
+		{
+			throw new IOException("Corrupt snapshot: bad count " + count);
+		}
+		return count;
+	}
+
+	private static int readInt(ByteBuffer in) throws IOException
+	{
+		if (in.remaining() < 4)
+		{
+			throw new IOException("Corrupt snapshot: truncated");
+		}
+		return in.getInt();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(CHARSET);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) throws IOException
+	{
+		int length = readInt(in);
+		if (length < 0 || length > in.remaining())
+		{
+			throw new IOException("Corrupt snapshot: bad string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	private interface Visitor {
+		void visit(String dropdownId, int depth, int node);
+	}
+
+	private static final class NodeBuilder {
+		private final int value;
+		private final Map<String, NodeBuilder> children = new LinkedHashMap<String, NodeBuilder>();
+
+		NodeBuilder(int value) {
+			this.value = value;
+		}
+
+		/**
+		 * Returns the child with the given value, adding it and, if new, the
+		 * value to the dictionary.
+		 */
+		NodeBuilder child(String childValue, Map<String, Integer> dictionary) {
+			NodeBuilder child = children.get(childValue);
+			if (child == null)
+			{
+				Integer index = dictionary.get(childValue);
+				if (index == null)
+				{
+					index = dictionary.size();
+					dictionary.put(childValue, index);
+				}
+				child = new NodeBuilder(index);
+				children.put(childValue, child);
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * Tab delimited multi-level files, fingerprinted by their last
+	 * modification time and size. The registered instance only hands out the
+	 * sources of each list of dropdown column names.
+	 */
+	@Extension(ordinal = -1000)
+	public static class FileSource extends MultiLevelSource {
+		private static final ConcurrentMap<String, FileSource> sources = new ConcurrentHashMap<String, FileSource>();
+
+		private final String dropDownNames;
+
+		public FileSource() {
+			this(null);
+		}
+
+		private FileSource(String dropDownNames) {
+			this.dropDownNames = dropDownNames;
+		}
+
+		@Override
+		public MultiLevelSource forColumns(String dropDownNames) {
+			FileSource source = sources.get(dropDownNames);
+			if(source == null) {
+				sources.putIfAbsent(dropDownNames, new FileSource(dropDownNames));
+				source = sources.get(dropDownNames);
+			}
+			return source;
+		}
+
+		@Override
+		public String getId() {
+			return MultiLevelIndex.class.getName() + ":" + dropDownNames;
+		}
+
+		/**
+		 * Returns the canonical path, so that every spelling of a file shares
+		 * one tree and one snapshot.
+		 */
+		@Override
+		public String normalize(String tsvPath) throws IOException {
+			return new File(tsvPath).getCanonicalPath();
+		}
+
+		@Override
+		public Object getVersion(String tsvPath) {
+			File tsvFile = new File(tsvPath);
+			return tsvFile.lastModified() + ":" + tsvFile.length();
+		}
+
+		/**
+		 * Reads the snapshot of the file if it matches the file, and compiles
+		 * the file and saves a new snapshot otherwise.
+		 */
+		@Override
+		public MultiLevelIndex load(String tsvPath, MultiLevelIndex previous) throws Exception {
+			File tsvFile = new File(tsvPath);
+			long length = tsvFile.length();
+			long lastModified = tsvFile.lastModified();
+			File snapshotFile = getSnapshotFile(tsvPath);
+			if(snapshotFile != null && snapshotFile.isFile()) {
+				MultiLevelIndex index = readSnapshot(snapshotFile, tsvFile, length, lastModified);
+				if(index != null) {
+					return index;
+				}
+			}
+
+			ChoiceMetrics.bytesRead(length);
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			CSVReader reader = new CSVReader(new InputStreamReader(
+							new DigestInputStream(new FileInputStream(tsvFile), digest), CHARSET), '\t');
+			MultiLevelIndex index;
+			try {
+				index = compile(reader, dropDownNames.split(","), tsvPath);
+			}
+			finally {
+				reader.close();
+			}
+			if(snapshotFile != null) {
+				writeSnapshot(snapshotFile, tsvFile, length, lastModified, Util.toHexString(digest.digest()), index);
+			}
+			return index;
+		}
+
+		/**
+		 * Returns the tree saved in the given snapshot, or null if the snapshot
+		 * is unreadable or was taken of other content. The file is only hashed
+		 * if its size and modification time match the snapshot's, and then the
+		 * hash is compared too, as both can stay the same across a change.
+		 *
+		 * The snapshot is read into memory rather than mapped, so that no
+		 * mapping keeps it open and it can be replaced on every platform.
+		 */
+		private MultiLevelIndex readSnapshot(File snapshotFile, File tsvFile, long length, long lastModified) {
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(readFully(snapshotFile));
+				ChoiceMetrics.bytesRead(buffer.capacity());
+				if(buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_FORMAT
+								|| !tsvFile.getPath().equals(readString(buffer))
+								|| !dropDownNames.equals(readString(buffer))) {
+					return null;
+				}
+				long snapshotLength = buffer.getLong();
+				long snapshotLastModified = buffer.getLong();
+				if(snapshotLength != length || snapshotLastModified != lastModified) {
+					return null;
+				}
+				if(!readString(buffer).equals(digestOf(tsvFile))) {
+					return null;
+				}
+				return readFrom(buffer);
+			}
+			catch(Exception e) {
+				LOGGER.log(Level.WARNING, "Ignoring unreadable snapshot " + snapshotFile + " of " + tsvFile, e);
+				return null;
+			}
+		}
+
+		private void writeSnapshot(File snapshotFile, File tsvFile, long length, long lastModified, String digest,
+						MultiLevelIndex index) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_FORMAT);
+				writeString(out, tsvFile.getPath());
+				writeString(out, dropDownNames);
+				out.writeLong(length);
+				out.writeLong(lastModified);
+				writeString(out, digest);
+				index.writeTo(out);
+				out.flush();
+				DiskCache.write(snapshotFile, bytes.toByteArray());
+			}
+			catch(IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to save a snapshot of " + tsvFile, e);
+			}
+		}
+
+		private static byte[] readFully(File file) throws IOException {
+			InputStream in = new FileInputStream(file);
+			try {
+				return IOUtils.toByteArray(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		private static String digestOf(File file) throws IOException {
+			InputStream in = new FileInputStream(file);
+			try {
+				return Util.getDigestOf(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+
+		@Override
+		public File getWatchedFile(String tsvPath) {
+			return new File(tsvPath);
+		}
+
+		/**
+		 * Deletes the snapshot.
+		 */
+		@Override
+		public void forget(String tsvPath) {
+			File snapshotFile = getSnapshotFile(tsvPath);
+			if(snapshotFile != null && snapshotFile.isFile() && !snapshotFile.delete()) {
+				LOGGER.log(Level.FINE, "Cannot delete " + snapshotFile);
+			}
+		}
+
+		private File getSnapshotFile(String tsvPath) {
+			return DiskCache.getFile("multi-level-cache", getId() + '\n' + tsvPath, ".bin");
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.IOException;
+
+/**
+ * Source of the tree of a multi-level parameter, read from the location the
+ * parameter's "property file" names.
+ *
+ * The registered source is found by location and then asked for a source of
+ * the parameter's dropdown columns with {@link #forColumns(String)}; only the
+ * sources it returns are loaded. The built-in source compiles tab delimited
+ * files, see {@link MultiLevelIndex#compile}.
+ */
+public abstract class MultiLevelSource extends ChoiceSource<MultiLevelIndex> {
+
+	/**
+	 * Returns a source compiling the given comma separated dropdown columns of
+	 * the locations this source reads. Sources of other columns must return
+	 * different ids.
+	 */
+	public abstract MultiLevelSource forColumns(String dropDownNames);
+
+	@Override
+	public long getSize(MultiLevelIndex index) {
+		return index.getSize();
+	}
+
+	/**
+	 * Returns the tree of the given columns of the given location, compiling
+	 * it only if the location changed since it was last compiled.
+	 */
+	static MultiLevelIndex getIndex(String location, String dropDownNames) throws IOException {
+		return ChoiceSourceCache.get(find(MultiLevelSource.class, location).forColumns(dropDownNames), location);
+	}
+}
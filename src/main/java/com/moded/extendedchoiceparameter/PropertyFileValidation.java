@@ -0,0 +1,102 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads property files for form validation without pinning request threads.
+ *
+ * A location already cached for build pages is served from
+ * {@link ChoiceSourceCache}. Any other location is checked with
+ * {@link PropertySource#check(String)} on a small pool of its own, so
+ * validating a typo neither creates cache entries, circuit breakers or copies
+ * on disk nor takes threads from the loads of build pages. The validating
+ * request waits at most {@link #TIMEOUT} milliseconds and otherwise reports
+ * that the check is still running; so does it when {@link #QUEUE_SIZE} checks
+ * are already waiting.
+ */
+final class PropertyFileValidation {
+
+	/**
+	 * How long a validation request waits for a remote source, in
+	 * milliseconds.
+	 */
+	static final long TIMEOUT = Long.getLong(PropertyFileValidation.class.getName() + ".timeout", 2 * 1000L);
+
+	/**
+	 * Maximum number of locations checked at the same time.
+	 */
+	static final int THREADS = Integer.getInteger(PropertyFileValidation.class.getName() + ".threads", 2);
+
+	/**
+	 * Maximum number of checks waiting for a thread.
+	 */
+	static final int QUEUE_SIZE = Integer.getInteger(PropertyFileValidation.class.getName() + ".queueSize", 8);
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+					60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Extended choice parameter validation");
+							thread.setDaemon(true);
+							return thread;
+						}
+					},
+					new ThreadPoolExecutor.AbortPolicy());
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	private PropertyFileValidation() {
+	}
+
+	/**
+	 * Returns the properties of the given file or URL, or null if they could
+	 * not be checked in time.
+	 */
+	static Map<String, String> load(final String propertyFilePath) throws Exception {
+		final PropertySource source = PropertySource.find(propertyFilePath);
+		Map<String, String> cached = ChoiceSourceCache.getCached(source, propertyFilePath);
+		if(cached != null) {
+			return cached;
+		}
+
+		Future<Map<String, String>> check;
+		try {
+			check = executor.submit(new Callable<Map<String, String>>() {
+				public Map<String, String> call() throws Exception {
+					return source.check(propertyFilePath);
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			return null;
+		}
+		try {
+			return check.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch(TimeoutException e) {
+			// nothing keeps the result, so stop waiting for it
+			check.cancel(true);
+			return null;
+		}
+		catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.Property;
+
+/**
+ * Source of the properties a parameter's "property file" names. Each property
+ * holds the comma separated choices of one key.
+ *
+ * The first registered source, by descending ordinal, that handles a location
+ * is used. The built-in sources read local files and, as a fallback, URLs; a
+ * plugin can contribute others, e.g. for a database or a JSON file, by
+ * registering a subclass with {@link hudson.Extension}.
+ */
+public abstract class PropertySource extends ChoiceSource<Map<String, String>> {
+
+	/**
+	 * Whether this source reads the given location.
+	 */
+	@Override
+	public abstract boolean handles(String location);
+
+	/**
+	 * Counts the characters of every key and value plus a fixed overhead per
+	 * property.
+	 */
+	@Override
+	public long getSize(Map<String, String> properties) {
+		long size = 0;
+		for(Map.Entry<String, String> e: properties.entrySet()) {
+			size += 96 + 2L * (e.getKey().length() + e.getValue().length());
+		}
+		return size;
+	}
+
+	/**
+	 * Loads the location for form validation. Unlike {@link #load} it must not
+	 * keep anything for the location, as no parameter uses the location yet.
+	 */
+	public Map<String, String> check(String location) throws Exception {
+		return load(location, null);
+	}
+
+	/**
+	 * Returns the properties of the given location as an unmodifiable map.
+	 */
+	static Map<String, String> getProperties(String location) throws IOException {
+		return ChoiceSourceCache.get(find(location), location);
+	}
+
+	static PropertySource find(String location) throws IOException {
+		return find(PropertySource.class, location);
+	}
+
+	/**
+	 * Parses a property file, resolving references between properties the same
+	 * way Ant does.
+	 */
+	protected static Map<String, String> parse(InputStream in, boolean xml) throws IOException {
+		Project project = new Project();
+		PropertyLoader property = new PropertyLoader();
+		property.setProject(project);
+		property.load(in, xml);
+		return toMap(project);
+	}
+
+	static Map<String, String> toMap(Project project) {
+		Map<String, String> properties = new HashMap<String, String>();
+		for(Object o: project.getProperties().entrySet()) {
+			Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+			properties.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+		}
+		return Collections.unmodifiableMap(properties);
+	}
+
+	/**
+	 * Exposes Ant's resolution of references between properties for properties
+	 * that were not loaded by Ant itself.
+	 */
+	private static final class PropertyLoader extends Property {
+		void load(InputStream in, boolean xml) throws IOException {
+			Properties properties = new Properties();
+			if(xml) {
+				properties.loadFromXML(in);
+			}
+			else {
+				properties.load(in);
+			}
+			addProperties(properties);
+		}
+	}
+}
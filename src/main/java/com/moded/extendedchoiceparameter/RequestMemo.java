@@ -0,0 +1,56 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Memoizes values for the duration of the current HTTP request, so the Jelly
+ * views rendering a parameter share one computation of each value.
+ *
+ * Outside of a request every call computes the value afresh.
+ */
+final class RequestMemo {
+
+	private static final String ATTRIBUTE_PREFIX = RequestMemo.class.getName() + ".";
+
+	private RequestMemo() {
+	}
+
+	abstract static class Computation<T> {
+		abstract T compute();
+	}
+
+	/**
+	 * Returns the value memoized under the given name for the given owner in the
+	 * current request, computing it on first use.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T get(Object owner, String name, Computation<T> computation) {
+		StaplerRequest request = Stapler.getCurrentRequest();
+		if(request == null) {
+			return computation.compute();
+		}
+
+		String attribute = ATTRIBUTE_PREFIX + name;
+		Map<Object, Object> memo = (Map<Object, Object>) request.getAttribute(attribute);
+		if(memo == null) {
+			memo = new IdentityHashMap<Object, Object>();
+			request.setAttribute(attribute, memo);
+		}
+		if(memo.containsKey(owner)) {
+			return (T) memo.get(owner);
+		}
+
+		T value = computation.compute();
+		memo.put(owner, value);
+		return value;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.AuthorizationStrategy;
+import com.michelin.cio.hudson.plugins.rolestrategy.Role;
+import com.michelin.cio.hudson.plugins.rolestrategy.RoleBasedAuthorizationStrategy;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the global and project roles granted to each user by the
+ * role-strategy plugin.
+ *
+ * Identical role sets are interned, so users with the same roles share one
+ * set instance. The cache is dropped whenever the authorization strategy is replaced or the
+ * Jenkins or user configuration is saved, which is how role and grant changes
+ * are persisted.
+ */
+public final class RoleCache {
+
+	private static volatile Snapshot snapshot = new Snapshot(null);
+
+	private RoleCache() {
+	}
+
+	/**
+	 * Returns the names of the roles granted to the current user, or an empty
+	 * set if there is no user or role based authorization is not in use.
+	 */
+	static Set<String> getCurrentUserRoles() {
+		Hudson hudson = Hudson.getInstance();
+		if(hudson == null) {
+			return Collections.emptySet();
+		}
+		User user = User.current();
+		if(user == null) {
+			return Collections.emptySet();
+		}
+
+		AuthorizationStrategy authStrategy = hudson.getAuthorizationStrategy();
+		Snapshot current = snapshot;
+		if(current.authStrategy != authStrategy) {
+			current = new Snapshot(authStrategy);
+			snapshot = current;
+			FilteredChoiceCache.clear();
+		}
+
+		String userId = user.getId();
+		Set<String> roles = current.rolesByUser.get(userId);
+		if(roles == null) {
+			roles = computeRoles(authStrategy, userId);
+			Set<String> interned = current.internedRoles.putIfAbsent(roles, roles);
+			if(interned != null) {
+				roles = interned;
+			}
+			current.rolesByUser.put(userId, roles);
+		}
+		return roles;
+	}
+
+	static void invalidate() {
+		snapshot = new Snapshot(null);
+		FilteredChoiceCache.clear();
+	}
+
+	private static Set<String> computeRoles(AuthorizationStrategy authStrategy, String userId) {
+		if(!(authStrategy instanceof RoleBasedAuthorizationStrategy)) {
+			return Collections.emptySet();
+		}
+		RoleBasedAuthorizationStrategy roleBasedAuthStrategy = (RoleBasedAuthorizationStrategy) authStrategy;
+		Set<String> roles = new HashSet<String>();
+		addRoles(roles, roleBasedAuthStrategy, "globalRoles", userId);
+		addRoles(roles, roleBasedAuthStrategy, "projectRoles", userId);
+		return Collections.unmodifiableSet(roles);
+	}
+
+	private static void addRoles(Set<String> roles, RoleBasedAuthorizationStrategy authStrategy, String roleType, String userId) {
+		SortedMap<Role, Set<String>> grantedRoles = authStrategy.getGrantedRoles(roleType);
+		if(grantedRoles == null) {
+			return;
+		}
+		for(Map.Entry<Role, Set<String>> entry : grantedRoles.entrySet()) {
+			if(entry.getValue().contains(userId)) {
+				roles.add(entry.getKey().getName());
+			}
+		}
+	}
+
+	/**
+	 * Roles cached for one authorization strategy instance.
+	 */
+	private static final class Snapshot {
+		final AuthorizationStrategy authStrategy;
+		final ConcurrentMap<String, Set<String>> rolesByUser = new ConcurrentHashMap<String, Set<String>>();
+		final ConcurrentMap<Set<String>, Set<String>> internedRoles = new ConcurrentHashMap<Set<String>, Set<String>>();
+
+		Snapshot(AuthorizationStrategy authStrategy) {
+			this.authStrategy = authStrategy;
+		}
+	}
+
+	/**
+	 * Role definitions and assignments are saved with the Jenkins configuration.
+	 */
+	@Extension
+	public static final class InvalidateOnSave extends SaveableListener {
+		@Override
+		public void onChange(Saveable o, XmlFile file) {
+			if(o instanceof Hudson || o instanceof User) {
+				invalidate();
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * A value in {@link ChoiceSourceCache} together with the parameters using it.
+ *
+ * Parameters are held weakly, so a parameter stops counting as a consumer once
+ * its job is reconfigured or deleted. A value no parameter uses any more is
+ * dropped from the cache.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class SharedSource {
+
+	private final String key;
+
+	private final ChoiceSource<?> source;
+
+	private final String location;
+
+	/**
+	 * Name of each consuming parameter, keyed by the parameter itself.
+	 */
+	private final Map<Object, String> consumers = new WeakHashMap<Object, String>();
+
+	SharedSource(String key, ChoiceSource<?> source, String location) {
+		this.key = key;
+		this.source = source;
+		this.location = location;
+	}
+
+	synchronized void addConsumer(Object consumer, String name) {
+		consumers.put(consumer, name);
+	}
+
+	ChoiceSource<?> getChoiceSource() {
+		return source;
+	}
+
+	@Exported
+	public String getSource() {
+		return source.getDisplayName();
+	}
+
+	@Exported
+	public String getLocation() {
+		return location;
+	}
+
+	@Exported
+	public synchronized int getConsumerCount() {
+		return consumers.size();
+	}
+
+	/**
+	 * Returns the names of the consuming parameters, sorted.
+	 */
+	@Exported
+	public synchronized List<String> getConsumers() {
+		return new ArrayList<String>(new TreeSet<String>(consumers.values()));
+	}
+
+	/**
+	 * Returns roughly how many bytes the loaded value takes, or -1 if unknown
+	 * or not loaded.
+	 */
+	@Exported
+	public long getSize() {
+		return ChoiceSourceCache.getSize(key, source);
+	}
+}
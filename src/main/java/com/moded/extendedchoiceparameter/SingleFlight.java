@@ -0,0 +1,91 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key: the first caller runs the
+ * call and everyone who asks for the key while it runs gets the same result.
+ * Results are not kept once the call is done; callers cache them themselves.
+ *
+ * @param <K> the key type; all calls for one key must return the same type
+ */
+final class SingleFlight<K> {
+
+	private final ConcurrentMap<K, FutureTask<?>> calls = new ConcurrentHashMap<K, FutureTask<?>>();
+
+	/**
+	 * Returns the running call for the key, or starts the given one: on the
+	 * executor if there is one, on the calling thread otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	<V> FutureTask<V> start(K key, Callable<V> callable, Executor executor) {
+		FutureTask<V> call = new FutureTask<V>(callable);
+		FutureTask<?> inFlight;
+		while((inFlight = calls.putIfAbsent(key, call)) != null) {
+			if(!inFlight.isDone()) {
+				return (FutureTask<V>) inFlight;
+			}
+			// finished, but not yet removed by the thread that ran it
+			calls.remove(key, inFlight);
+		}
+		run(key, call, executor);
+		return call;
+	}
+
+	/**
+	 * Returns the call running for the key, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	<V> FutureTask<V> running(K key) {
+		return (FutureTask<V>) calls.get(key);
+	}
+
+	/**
+	 * Starts the given call even if one is running for the key, e.g. because
+	 * the running one may work from outdated input. Callers asking for the key
+	 * from now on get the new call.
+	 */
+	<V> FutureTask<V> restart(K key, Callable<V> callable, Executor executor) {
+		FutureTask<V> call = new FutureTask<V>(callable);
+		calls.put(key, call);
+		run(key, call, executor);
+		return call;
+	}
+
+	private void run(final K key, final FutureTask<?> call, Executor executor) {
+		Runnable run = new Runnable() {
+			public void run() {
+				try {
+					call.run();
+				}
+				finally {
+					calls.remove(key, call);
+				}
+			}
+		};
+		if(executor != null) {
+			executor.execute(run);
+		}
+		else {
+			run.run();
+		}
+	}
+
+	/**
+	 * Runs the callable on the calling thread, or waits for the call already
+	 * running for the key.
+	 */
+	<V> V call(K key, Callable<V> callable) throws ExecutionException, InterruptedException {
+		return start(key, callable, null).get();
+	}
+}
@@ -0,0 +1,273 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+import hudson.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.net.ssl.TrustManager;
+
+import org.apache.commons.lang.StringUtils;
+import org.tmatesoft.svn.core.SVNDirEntry;
+import org.tmatesoft.svn.core.SVNErrorMessage;
+import org.tmatesoft.svn.core.SVNException;
+import org.tmatesoft.svn.core.SVNURL;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationManager;
+import org.tmatesoft.svn.core.auth.ISVNAuthenticationProvider;
+import org.tmatesoft.svn.core.auth.ISVNProxyManager;
+import org.tmatesoft.svn.core.auth.SVNAuthentication;
+import org.tmatesoft.svn.core.io.SVNRepository;
+import org.tmatesoft.svn.core.io.SVNRepositoryFactory;
+import org.tmatesoft.svn.core.wc.SVNWCUtil;
+
+/**
+ * Directory listings of one SVN repository, read with one set of credentials.
+ *
+ * A listing is fingerprinted by the revision in which something under the
+ * listed path last changed, so the directory is only listed again when it
+ * changed. Sessions are pooled and reused between checks.
+ *
+ * The registered instance only hands out the sources of each repository and
+ * set of credentials. A source is dropped, and its idle sessions closed, once
+ * none of its listings is cached any more.
+ */
+@Extension(ordinal = -1000)
+public class SvnListingSource extends ListingSource {
+
+	/**
+	 * How long a listing is served from memory before checking the repository
+	 * revision again, in milliseconds.
+	 */
+	static final long TTL = Long.getLong(SvnListingSource.class.getName() + ".ttl", 5 * 1000L);
+
+	/**
+	 * How long a page waits for the first listing of a directory, in
+	 * milliseconds.
+	 */
+	static final long TIMEOUT = Long.getLong(SvnListingSource.class.getName() + ".timeout", 10 * 1000L);
+
+	/**
+	 * Connect timeout of SVN sessions, in milliseconds.
+	 */
+	static final int CONNECT_TIMEOUT = Integer.getInteger(SvnListingSource.class.getName() + ".connectTimeout", 5 * 1000);
+
+	/**
+	 * Read timeout of SVN sessions, in milliseconds.
+	 */
+	static final int READ_TIMEOUT = Integer.getInteger(SvnListingSource.class.getName() + ".readTimeout", 10 * 1000);
+
+	/**
+	 * How many idle sessions are kept per repository URL and credentials.
+	 */
+	static final int MAX_IDLE_SESSIONS = Integer.getInteger(SvnListingSource.class.getName() + ".maxIdleSessions", 4);
+
+	private static final ConcurrentMap<String, SvnListingSource> sources = new ConcurrentHashMap<String, SvnListingSource>();
+
+	private final String svnUrl;
+
+	private final String svnUserName;
+
+	private final String svnPassword;
+
+	private final String id;
+
+	private final BlockingQueue<SVNRepository> idleSessions = new LinkedBlockingQueue<SVNRepository>(MAX_IDLE_SESSIONS);
+
+	public SvnListingSource() {
+		this(null, null, null, SvnListingSource.class.getName());
+	}
+
+	private SvnListingSource(String svnUrl, String svnUserName, String svnPassword, String id) {
+		this.svnUrl = svnUrl;
+		this.svnUserName = svnUserName;
+		this.svnPassword = svnPassword;
+		this.id = id;
+	}
+
+	@Override
+	public ListingSource forRepository(String svnUrl, String svnUserName, String svnPassword) {
+		String id = SvnListingSource.class.getName() + ":" + svnUrl + ":" + StringUtils.defaultString(svnUserName)
+						+ ":" + Util.getDigestOf(StringUtils.defaultString(svnPassword));
+		SvnListingSource source = sources.get(id);
+		if(source == null) {
+			sources.putIfAbsent(id, new SvnListingSource(svnUrl, svnUserName, svnPassword, id));
+			source = sources.get(id);
+		}
+		return source;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "SVN " + svnUrl + (StringUtils.isBlank(svnUserName) ? "" : " as " + svnUserName);
+	}
+
+	@Override
+	public boolean isRemote() {
+		return true;
+	}
+
+	@Override
+	public long getRecheckInterval() {
+		return TTL;
+	}
+
+	@Override
+	public long getTimeout() {
+		return TIMEOUT;
+	}
+
+	/**
+	 * Returns the revision in which something under the path last changed.
+	 */
+	@Override
+	public Object getVersion(String svnPath) throws Exception {
+		SVNRepository repository = borrow();
+		try {
+			SVNDirEntry info = repository.info(svnPath, -1);
+			release(repository);
+			return info == null ? null : info.getRevision();
+		}
+		catch(Exception e) {
+			repository.closeSession();
+			throw e;
+		}
+	}
+
+	@Override
+	public String load(String svnPath, String previous) throws Exception {
+		SVNRepository repository = borrow();
+		List<SVNDirEntry> entries = new ArrayList<SVNDirEntry>();
+		try {
+			repository.getDir(svnPath, -1, false, entries);
+			release(repository);
+		}
+		catch(Exception e) {
+			repository.closeSession();
+			throw e;
+		}
+		Collections.sort(entries, NEWEST_FIRST);
+
+		StringBuilder svn_list_content = new StringBuilder();
+		for(SVNDirEntry entry: entries) {
+			svn_list_content.append(entry.getName()).append(',');
+		}
+		ChoiceMetrics.bytesRead(svn_list_content.length());
+		return svn_list_content.toString();
+	}
+
+	/**
+	 * Orders entries by the revision they last changed in, most recent first.
+	 * Entries that changed in the same revision are ordered by name.
+	 */
+	private static final Comparator<SVNDirEntry> NEWEST_FIRST = new Comparator<SVNDirEntry>() {
+		public int compare(SVNDirEntry a, SVNDirEntry b) {
+			if(a.getRevision() != b.getRevision()) {
+				return a.getRevision() > b.getRevision() ? -1 : 1;
+			}
+			return a.getName().compareTo(b.getName());
+		}
+	};
+
+	private SVNRepository borrow() throws Exception {
+		SVNRepository repository = idleSessions.poll();
+		if(repository != null) {
+			return repository;
+		}
+
+		repository = SVNRepositoryFactory.create(SVNURL.parseURIDecoded(svnUrl));
+		repository.setAuthenticationManager(new TimeoutAuthenticationManager(
+						SVNWCUtil.createDefaultAuthenticationManager(svnUserName, svnPassword)));
+		return repository;
+	}
+
+	private void release(SVNRepository repository) {
+		if(!idleSessions.offer(repository)) {
+			repository.closeSession();
+		}
+	}
+
+	/**
+	 * Drops this source and closes its idle sessions once no listing of it is
+	 * cached any more.
+	 */
+	@Override
+	public void forget(String svnPath) {
+		if(!ChoiceSourceCache.isUsed(this) && sources.remove(id, this)) {
+			SVNRepository repository;
+			while((repository = idleSessions.poll()) != null) {
+				repository.closeSession();
+			}
+		}
+	}
+
+	/**
+	 * Authenticates like the given manager, but with our connect and read
+	 * timeouts. SVNKit takes the timeouts of a session from its
+	 * authentication manager.
+	 */
+	private static final class TimeoutAuthenticationManager implements ISVNAuthenticationManager {
+		private final ISVNAuthenticationManager delegate;
+
+		TimeoutAuthenticationManager(ISVNAuthenticationManager delegate) {
+			this.delegate = delegate;
+		}
+
+		public int getConnectTimeout(SVNRepository repository) {
+			return CONNECT_TIMEOUT;
+		}
+
+		public int getReadTimeout(SVNRepository repository) {
+			return READ_TIMEOUT;
+		}
+
+		public void setAuthenticationProvider(ISVNAuthenticationProvider provider) {
+			delegate.setAuthenticationProvider(provider);
+		}
+
+		public ISVNProxyManager getProxyManager(SVNURL url) throws SVNException {
+			return delegate.getProxyManager(url);
+		}
+
+		public TrustManager getTrustManager(SVNURL url) throws SVNException {
+			return delegate.getTrustManager(url);
+		}
+
+		public SVNAuthentication getFirstAuthentication(String kind, String realm, SVNURL url) throws SVNException {
+			return delegate.getFirstAuthentication(kind, realm, url);
+		}
+
+		public SVNAuthentication getNextAuthentication(String kind, String realm, SVNURL url) throws SVNException {
+			return delegate.getNextAuthentication(kind, realm, url);
+		}
+
+		public void acknowledgeAuthentication(boolean accepted, String kind, String realm, SVNErrorMessage errorMessage,
+						SVNAuthentication authentication) throws SVNException {
+			delegate.acknowledgeAuthentication(accepted, kind, realm, errorMessage, authentication);
+		}
+
+		public void acknowledgeTrustManager(TrustManager manager) {
+			delegate.acknowledgeTrustManager(manager);
+		}
+
+		public boolean isAuthenticationForced() {
+			return delegate.isAuthenticationForced();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import hudson.Extension;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Property files loaded from a URL; the fallback for any location that is not
+ * handled by another source.
+ *
+ * The last good copy of each document is kept under
+ * JENKINS_HOME/dynamic-extended-choice-parameter/url-cache together with its
+ * ETag and Last-Modified headers. It is served right after a restart while
+ * the URL is fetched again, and refreshes use conditional GETs, so an
+ * unchanged document is neither downloaded nor parsed again.
+ */
+@Extension(ordinal = -1000)
+public class UrlPropertySource extends PropertySource {
+
+	private static final Logger LOGGER = Logger.getLogger(UrlPropertySource.class.getName());
+
+	/**
+	 * How long a copy is served without checking the server, in milliseconds.
+	 */
+	static final long MAX_AGE = Long.getLong(UrlPropertySource.class.getName() + ".maxAge", 60 * 1000L);
+
+	/**
+	 * How long a page waits for the first fetch of a URL, in milliseconds.
+	 */
+	static final long TIMEOUT = Long.getLong(UrlPropertySource.class.getName() + ".timeout", 10 * 1000L);
+
+	/**
+	 * Connect timeout, in milliseconds.
+	 */
+	static final int CONNECT_TIMEOUT = Integer.getInteger(UrlPropertySource.class.getName() + ".connectTimeout", 5 * 1000);
+
+	/**
+	 * Read timeout, in milliseconds.
+	 */
+	static final int READ_TIMEOUT = Integer.getInteger(UrlPropertySource.class.getName() + ".readTimeout", 10 * 1000);
+
+	@Override
+	public String getDisplayName() {
+		return "URL";
+	}
+
+	@Override
+	public boolean handles(String location) {
+		return true;
+	}
+
+	/**
+	 * Documents are revalidated with a conditional GET instead.
+	 */
+	@Override
+	public Object getVersion(String location) {
+		return null;
+	}
+
+	@Override
+	public boolean isRemote() {
+		return true;
+	}
+
+	@Override
+	public long getRecheckInterval() {
+		return MAX_AGE;
+	}
+
+	@Override
+	public long getTimeout() {
+		return TIMEOUT;
+	}
+
+	@Override
+	public Map<String, String> getLastKnown(String url) {
+		try {
+			Properties meta = readMeta(url);
+			File bodyFile = getCacheFile(url, ".body");
+			if(meta == null || !bodyFile.isFile()) {
+				return null;
+			}
+			return parse(read(bodyFile), isXml(url));
+		}
+		catch(Exception e) {
+			LOGGER.log(Level.WARNING, "Ignoring unreadable cached copy of " + url, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Fetches the URL, conditionally if a previous copy is known.
+	 */
+	@Override
+	public Map<String, String> load(String url, Map<String, String> previous) throws IOException {
+		return fetch(url, previous, true);
+	}
+
+	/**
+	 * Fetches the URL without saving a copy.
+	 */
+	@Override
+	public Map<String, String> check(String url) throws IOException {
+		return fetch(url, null, false);
+	}
+
+	private Map<String, String> fetch(String url, Map<String, String> previous, boolean keep) throws IOException {
+		URLConnection connection = new URL(url).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+
+		Properties meta = previous == null ? null : readMeta(url);
+		if(connection instanceof HttpURLConnection && meta != null) {
+			if(meta.getProperty("etag") != null) {
+				connection.setRequestProperty("If-None-Match", meta.getProperty("etag"));
+			}
+			if(meta.getProperty("lastModified") != null) {
+				connection.setRequestProperty("If-Modified-Since", meta.getProperty("lastModified"));
+			}
+			if(((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				return previous;
+			}
+		}
+
+		InputStream in = connection.getInputStream();
+		byte[] body;
+		try {
+			body = IOUtils.toByteArray(in);
+		}
+		finally {
+			in.close();
+		}
+		ChoiceMetrics.bytesRead(body.length);
+
+		Map<String, String> properties = parse(new ByteArrayInputStream(body), isXml(url));
+		if(keep) {
+			writeToDisk(url, body, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+		}
+		return properties;
+	}
+
+	/**
+	 * Deletes the copy kept on disk.
+	 */
+	@Override
+	public void forget(String url) {
+		for(String suffix: new String[] {".body", ".meta"}) {
+			File file = getCacheFile(url, suffix);
+			if(file != null && file.isFile() && !file.delete()) {
+				LOGGER.log(Level.FINE, "Cannot delete " + file);
+			}
+		}
+	}
+
+	private static boolean isXml(String url) throws IOException {
+		return new URL(url).getFile().endsWith(".xml");
+	}
+
+	/**
+	 * Returns the file holding the cached copy of the given URL with the given
+	 * suffix, or null if Jenkins is not running.
+	 */
+	private static File getCacheFile(String url, String suffix) {
+		return DiskCache.getFile("url-cache", url, suffix);
+	}
+
+	/**
+	 * Returns the headers saved with the cached copy of the given URL, or null
+	 * if there is none.
+	 */
+	private static Properties readMeta(String url) throws IOException {
+		File metaFile = getCacheFile(url, ".meta");
+		if(metaFile == null || !metaFile.isFile()) {
+			return null;
+		}
+		Properties meta = new Properties();
+		InputStream in = read(metaFile);
+		try {
+			meta.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return url.equals(meta.getProperty("url")) ? meta : null;
+	}
+
+	private static InputStream read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return new ByteArrayInputStream(IOUtils.toByteArray(in));
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static void writeToDisk(String url, byte[] body, String etag, String lastModified) {
+		File bodyFile = getCacheFile(url, ".body");
+		if(bodyFile == null) {
+			return;
+		}
+		try {
+			Properties meta = new Properties();
+			meta.setProperty("url", url);
+			if(etag != null) {
+				meta.setProperty("etag", etag);
+			}
+			if(lastModified != null) {
+				meta.setProperty("lastModified", lastModified);
+			}
+			ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+			meta.store(metaBytes, null);
+
+			DiskCache.write(bodyFile, body);
+			DiskCache.write(getCacheFile(url, ".meta"), metaBytes.toByteArray());
+		}
+		catch(IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to save a copy of " + url, e);
+		}
+	}
+}
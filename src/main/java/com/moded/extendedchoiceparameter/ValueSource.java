@@ -0,0 +1,31 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import java.io.IOException;
+
+/**
+ * Source of the choices and default values configured inline, in a
+ * parameter's "value" and "default value" fields. The location is the
+ * configured text and the value the comma separated choices it stands for.
+ *
+ * The built-in source takes the text as is; a plugin can register one that
+ * interprets it, e.g. expands variables.
+ */
+public abstract class ValueSource extends ChoiceSource<String> {
+
+	@Override
+	public long getSize(String value) {
+		return 40 + 2L * value.length();
+	}
+
+	/**
+	 * Returns the comma separated choices the given inline value stands for.
+	 */
+	static String getValue(String value) throws IOException {
+		return ChoiceSourceCache.get(find(ValueSource.class, value), value);
+	}
+}
@@ -11,4 +11,188 @@ function get_parent(bindfieldname)
 				}
 			}
 			return element;
-}
\ No newline at end of file
+}
+
+// Renders the choices returned by computeChoices in place of the last child of
+// parent_element, or just re-enables it if the same choices are already shown.
+function render_choices(parent_element, data, type, visibleItemCount)
+{
+			var last = parent_element.childNodes[parent_element.childNodes.length - 1];
+			if (data.hash && parent_element.getAttribute("ecp_hash") == data.hash)
+			{
+				last.disabled = false;
+				return;
+			}
+
+			parent_element.removeChild(last);
+			parent_element.appendChild(create_choices_element(data.choices, type, visibleItemCount));
+			parent_element.setAttribute("ecp_hash", data.hash ? data.hash : "");
+
+			if (data.choices && type == "PT_CHECKBOX")
+			{
+				size_checkbox_list("module", data.choices.length, visibleItemCount);
+			}
+}
+
+function create_choices_element(choices, type, visibleItemCount)
+{
+			var select;
+			if (!choices)
+			{
+				select = document.createElement("select");
+				select.name = "value";
+				select.options[0] = new Option("Select", "select");
+				return select;
+			}
+
+			if (type == "PT_SINGLE_SELECT" || type == "PT_MULTI_SELECT")
+			{
+				select = document.createElement("select");
+				select.name = "value";
+				if (type == "PT_MULTI_SELECT")
+				{
+					select.multiple = true;
+					select.size = visibleItemCount;
+				}
+				for (var i = 0; i < choices.length; i++)
+				{
+					select.options[i] = new Option(choices[i], choices[i]);
+				}
+				return select;
+			}
+
+			if (type == "PT_CHECKBOX")
+			{
+				var name = "module";
+				var div = document.createElement("div");
+				div.id = "ecp_" + name;
+				div.style.paddingLeft = "25px";
+				var table = document.createElement("table");
+				table.id = "tbl_ecp_" + name;
+				for (var i = 0; i < choices.length; i++)
+				{
+					var row = table.insertRow(i);
+					row.id = "ecp_" + name + "_" + i;
+					row.style.whiteSpace = "nowrap";
+					var cell = row.insertCell(0);
+					var checkbox = document.createElement("input");
+					checkbox.type = "checkbox";
+					checkbox.name = "value";
+					checkbox.title = choices[i];
+					checkbox.value = choices[i];
+					checkbox.setAttribute("json", choices[i]);
+					cell.appendChild(checkbox);
+					cell.appendChild(document.createTextNode(choices[i]));
+					cell.appendChild(document.createElement("br"));
+				}
+				div.appendChild(table);
+				return div;
+			}
+
+			return document.createElement("span");
+}
+
+function size_checkbox_list(name, count, visibleItemCount)
+{
+			var height = 0;
+			var maxCount = count;
+			if (maxCount > visibleItemCount)
+			{
+				maxCount = visibleItemCount;
+			}
+
+			if (maxCount > 0 && document.getElementById("ecp_" + name + "_0").offsetHeight != 0)
+			{
+				for (var i = 0; i < maxCount; i++)
+				{
+					height += document.getElementById("ecp_" + name + "_" + i).offsetHeight + 3;
+				}
+			}
+			else
+			{
+				height = maxCount * 25.5;
+			}
+			height = Math.floor(height);
+			document.getElementById("ecp_" + name).style.height = height + "px";
+}
+
+// Type-ahead search of select parameters with many choices. Typing replaces
+// the unselected options with the first page of matches; "More..." appends
+// the next page. Selected options are always kept.
+var ecp_search_state = {};
+
+function ecp_search_choices(proxy, name, query, more)
+{
+			var state = ecp_search_state[name];
+			if (!state)
+			{
+				state = ecp_search_state[name] = { query: "", page: 0, seq: 0, timer: null };
+			}
+			if (state.timer)
+			{
+				clearTimeout(state.timer);
+				state.timer = null;
+			}
+
+			var page = 0;
+			if (more)
+			{
+				page = state.page + 1;
+				query = state.query;
+			}
+			else if (query == state.query)
+			{
+				return;
+			}
+
+			var seq = ++state.seq;
+			var search = function()
+			{
+				proxy.searchChoices(query, page, function(t) {
+					if (seq != state.seq)
+					{
+						return;
+					}
+					state.query = query;
+					state.page = page;
+					ecp_show_choices(name, t.responseObject(), more);
+				});
+			};
+			if (more)
+			{
+				search();
+			}
+			else
+			{
+				state.timer = setTimeout(search, 250);
+			}
+}
+
+function ecp_show_choices(name, data, append)
+{
+			var select = document.getElementById(name);
+			var present = {};
+			for (var i = select.options.length - 1; i >= 0; i--)
+			{
+				var option = select.options[i];
+				if (!append && !option.selected)
+				{
+					select.remove(i);
+				}
+				else
+				{
+					present[option.value] = true;
+				}
+			}
+
+			for (var i = 0; i < data.choices.length; i++)
+			{
+				if (!present[data.choices[i]])
+				{
+					select.options[select.options.length] = new Option(data.choices[i], data.choices[i]);
+				}
+			}
+
+			var more = document.getElementById(name + "_more");
+			more.style.display = (data.page + 1) * data.pageSize < data.total ? "" : "none";
+}
@@ -0,0 +1,65 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ChoiceIndexTest {
+
+	private final ChoiceIndex index = new ChoiceIndex(new String[] {"xab", "abc", "Abd", "zab", "ab", "other"});
+
+	@Test
+	public void emptyQueryPagesInOriginalOrder() {
+		ChoiceIndex.Page page = index.search("", 0, 4);
+		assertEquals(Arrays.asList("xab", "abc", "Abd", "zab"), page.choices);
+		assertEquals(6, page.total);
+
+		page = index.search("", 4, 4);
+		assertEquals(Arrays.asList("ab", "other"), page.choices);
+		assertEquals(6, page.total);
+	}
+
+	@Test
+	public void prefixMatchesComeFirstSortedThenOtherMatchesInOriginalOrder() {
+		ChoiceIndex.Page page = index.search("ab", 0, 10);
+		assertEquals(Arrays.asList("ab", "abc", "Abd", "xab", "zab"), page.choices);
+		assertEquals(5, page.total);
+	}
+
+	@Test
+	public void pagesSpanPrefixAndOtherMatches() {
+		assertEquals(Arrays.asList("ab", "abc"), index.search("ab", 0, 2).choices);
+		assertEquals(Arrays.asList("Abd", "xab"), index.search("ab", 2, 2).choices);
+		assertEquals(Arrays.asList("zab"), index.search("ab", 4, 2).choices);
+
+		ChoiceIndex.Page pastTheEnd = index.search("ab", 6, 2);
+		assertTrue(pastTheEnd.choices.isEmpty());
+		assertEquals(5, pastTheEnd.total);
+	}
+
+	@Test
+	public void queryIsTrimmedAndCaseInsensitive() {
+		assertEquals(index.search("ab", 0, 10).choices, index.search(" AB ", 0, 10).choices);
+	}
+
+	@Test
+	public void noMatches() {
+		ChoiceIndex.Page page = index.search("nothing", 0, 10);
+		assertTrue(page.choices.isEmpty());
+		assertEquals(0, page.total);
+	}
+
+	@Test
+	public void hugeOffsetIsEmpty() {
+		assertTrue(index.search("ab", Integer.MAX_VALUE, 10).choices.isEmpty());
+		assertTrue(index.search("", Integer.MAX_VALUE, 10).choices.isEmpty());
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChoiceSourceCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final TestSource source = new TestSource();
+
+	@After
+	public void clear() {
+		source.release.countDown();
+		ChoiceSourceCache.clear();
+	}
+
+	/**
+	 * Local source whose content never changes. Its first load blocks until
+	 * released if {@link #blockFirst} is set.
+	 */
+	private static final class TestSource extends ChoiceSource<String> {
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> forgotten = Collections.synchronizedList(new ArrayList<String>());
+		volatile boolean blockFirst;
+
+		@Override
+		public Object getVersion(String location) {
+			return "unchanged";
+		}
+
+		@Override
+		public String load(String location, String previous) throws Exception {
+			int load = loads.incrementAndGet();
+			if(load == 1 && blockFirst) {
+				started.countDown();
+				release.await(10, TimeUnit.SECONDS);
+			}
+			return location + " " + load;
+		}
+
+		@Override
+		public void forget(String location) {
+			forgotten.add(location);
+		}
+	}
+
+	/**
+	 * Calls {@link ChoiceSourceCache#get(ChoiceSource, String)} on its own
+	 * thread.
+	 */
+	private final class Getter extends Thread {
+		private final String location;
+		volatile String value;
+		volatile Throwable failure;
+
+		Getter(String location) {
+			this.location = location;
+			start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				value = ChoiceSourceCache.get(source, location);
+			}
+			catch(Throwable t) {
+				failure = t;
+			}
+		}
+
+		String result() throws Throwable {
+			join(10 * 1000L);
+			if(failure != null) {
+				throw failure;
+			}
+			return value;
+		}
+	}
+
+	private static void awaitWaiting(List<Getter> getters, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10 * 1000L;
+		while(true) {
+			int waiting = 0;
+			for(Getter getter: getters) {
+				if(getter.getState() == Thread.State.WAITING) {
+					++waiting;
+				}
+			}
+			if(waiting >= count || System.currentTimeMillis() > deadline) {
+				assertEquals(count, waiting);
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void concurrentCallersShareOneLoad() throws Throwable {
+		source.blockFirst = true;
+		List<Getter> getters = new ArrayList<Getter>();
+		getters.add(new Getter("a"));
+		assertTrue(source.started.await(10, TimeUnit.SECONDS));
+		for(int i = 0; i < 3; ++i) {
+			getters.add(new Getter("a"));
+		}
+		// the first getter loads, the others wait for its load
+		awaitWaiting(getters, 3);
+
+		source.release.countDown();
+		for(Getter getter: getters) {
+			assertEquals("a 1", getter.result());
+		}
+		assertEquals(1, source.loads.get());
+	}
+
+	@Test
+	public void staleLoadDoesNotReplaceNewerValue() throws Throwable {
+		source.blockFirst = true;
+		Getter getter = new Getter("b");
+		assertTrue(source.started.await(10, TimeUnit.SECONDS));
+
+		ChoiceSourceCache.reload(source, "b").get(10, TimeUnit.SECONDS);
+		source.release.countDown();
+
+		assertEquals("b 2", getter.result());
+		assertEquals("b 2", ChoiceSourceCache.get(source, "b"));
+		assertEquals(2, source.loads.get());
+	}
+
+	@Test
+	public void sweepDropsValuesWithoutConsumers() throws Exception {
+		Object owner = new Object();
+		ChoiceSourceCache.get(source, "unused");
+		ChoiceSourceCache.Consumer previous = ChoiceSourceCache.setConsumer(owner, "job / param");
+		try {
+			ChoiceSourceCache.get(source, "used");
+		}
+		finally {
+			ChoiceSourceCache.restoreConsumer(previous);
+		}
+
+		List<SharedSource> sharedSources = ChoiceSourceCache.getSharedSources();
+		assertEquals(1, sharedSources.size());
+		assertEquals("used", sharedSources.get(0).getLocation());
+		assertEquals(Collections.singletonList("unused"), source.forgotten);
+
+		// dropped, so loaded again; the used value is still cached
+		assertEquals("unused 3", ChoiceSourceCache.get(source, "unused"));
+		assertEquals("used 2", ChoiceSourceCache.get(source, "used"));
+		assertTrue(owner != null);
+	}
+
+	@Test
+	public void spellingsOfOneFileShareOneValue() throws Exception {
+		File dir = folder.newFolder("dir");
+		File file = new File(dir, "choices.properties");
+		FileUtils.writeStringToFile(file, "colors=red,green\n");
+		LocalPropertySource local = new LocalPropertySource();
+
+		Map<String, String> properties = ChoiceSourceCache.get(local, file.getPath());
+		assertEquals("red,green", properties.get("colors"));
+		assertSame(properties, ChoiceSourceCache.get(local, dir.getPath() + "/../dir/choices.properties"));
+		assertSame(properties, ChoiceSourceCache.get(local, dir.getPath() + "/./choices.properties"));
+	}
+}
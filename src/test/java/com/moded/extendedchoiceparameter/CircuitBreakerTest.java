@@ -0,0 +1,101 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private static void failUntilOpen(CircuitBreaker breaker) {
+		for(int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+			breaker.onFailure(new Exception("down"));
+		}
+	}
+
+	@Test
+	public void opensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("URL", "http://example.com/", 60 * 1000L);
+		for(int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD - 1; ++i) {
+			breaker.onFailure(new Exception("down"));
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+			assertTrue(breaker.allowRequest());
+		}
+
+		breaker.onFailure(new Exception("still down"));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertEquals(CircuitBreaker.FAILURE_THRESHOLD, breaker.getConsecutiveFailures());
+		assertEquals("java.lang.Exception: still down", breaker.getLastFailure());
+		assertNotNull(breaker.getRetryTime());
+	}
+
+	@Test
+	public void successResetsTheFailureCount() {
+		CircuitBreaker breaker = new CircuitBreaker("URL", "http://example.com/", 60 * 1000L);
+		for(int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD - 1; ++i) {
+			breaker.onFailure(new Exception("down"));
+		}
+		breaker.onSuccess();
+		breaker.onFailure(new Exception("down"));
+
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1, breaker.getConsecutiveFailures());
+		assertNull(breaker.getRetryTime());
+	}
+
+	@Test
+	public void staysOpenUntilTheRetryInterval() {
+		CircuitBreaker breaker = new CircuitBreaker("URL", "http://example.com/", 60 * 1000L);
+		failUntilOpen(breaker);
+
+		assertFalse(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void halfOpenLetsExactlyOneTrialThrough() {
+		CircuitBreaker breaker = new CircuitBreaker("URL", "http://example.com/", 0);
+		failUntilOpen(breaker);
+
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void failedTrialOpensAgain() {
+		CircuitBreaker breaker = new CircuitBreaker("URL", "http://example.com/", 0);
+		failUntilOpen(breaker);
+		assertTrue(breaker.allowRequest());
+
+		breaker.onFailure(new Exception("down"));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		// the next interval has passed at once, so there is a new trial
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void successfulTrialCloses() {
+		CircuitBreaker breaker = new CircuitBreaker("URL", "http://example.com/", 0);
+		failUntilOpen(breaker);
+		assertTrue(breaker.allowRequest());
+
+		breaker.onSuccess();
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(0, breaker.getConsecutiveFailures());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+}
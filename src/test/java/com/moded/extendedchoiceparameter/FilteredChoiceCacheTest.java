@@ -0,0 +1,85 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A list served from the cache is the same instance as the first time; a list
+ * filtered again is a new one.
+ */
+public class FilteredChoiceCacheTest {
+
+	private final Set<String> roles = new HashSet<String>(Arrays.asList("a", "c", "p_b"));
+
+	@Before
+	public void clear() {
+		FilteredChoiceCache.clear();
+	}
+
+	@Test
+	public void filtersByRole() {
+		assertEquals("Select,a,c,", FilteredChoiceCache.get(null, "a,b,c", null, roles));
+		assertEquals("Select,b,", FilteredChoiceCache.get(null, "a,b,c", "p", roles));
+	}
+
+	@Test
+	public void sameRolesShareOneList() {
+		String first = FilteredChoiceCache.get(null, "a,b,c", null, roles);
+		assertSame(first, FilteredChoiceCache.get(null, "a,b,c", null, roles));
+	}
+
+	@Test
+	public void otherRolesAreFilteredSeparately() {
+		String first = FilteredChoiceCache.get(null, "a,b,c", null, roles);
+		Set<String> equalRoles = new HashSet<String>(roles);
+		assertNotSame(first, FilteredChoiceCache.get(null, "a,b,c", null, equalRoles));
+	}
+
+	@Test
+	public void leastRecentlyUsedListIsEvicted() {
+		String first = FilteredChoiceCache.get(null, "first", null, roles);
+		for(int i = 0; i < FilteredChoiceCache.MAX_ENTRIES; ++i) {
+			FilteredChoiceCache.get(null, "choice" + i, null, roles);
+		}
+
+		String again = FilteredChoiceCache.get(null, "first", null, roles);
+		assertEquals(first, again);
+		assertNotSame(first, again);
+	}
+
+	@Test
+	public void recentlyUsedListIsKept() {
+		String first = FilteredChoiceCache.get(null, "first", null, roles);
+		for(int i = 0; i < FilteredChoiceCache.MAX_ENTRIES - 1; ++i) {
+			FilteredChoiceCache.get(null, "choice" + i, null, roles);
+		}
+		assertSame(first, FilteredChoiceCache.get(null, "first", null, roles));
+
+		// evicts choice0 rather than first
+		FilteredChoiceCache.get(null, "one more", null, roles);
+		assertSame(first, FilteredChoiceCache.get(null, "first", null, roles));
+	}
+
+	@Test
+	public void changedSourceDropsItsPreviousLists() {
+		String before = FilteredChoiceCache.get("file\nkey", "a,b", null, roles);
+		String other = FilteredChoiceCache.get("other\nkey", "a,b", null, roles);
+		FilteredChoiceCache.get("file\nkey", "a", null, roles);
+
+		assertNotSame(before, FilteredChoiceCache.get("file\nkey", "a,b", null, roles));
+		assertSame(other, FilteredChoiceCache.get("other\nkey", "a,b", null, roles));
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+public class MultiLevelIndexTest {
+
+	private static final String TSV = "Country\tState\tCity\n"
+					+ "United States\tCalifornia\tSan Francisco\n"
+					+ "United States\tCalifornia\tLos Angeles\n"
+					+ "United States\tTexas\tAustin\n"
+					+ "Germany\tBavaria\tMunich\n";
+
+	private static MultiLevelIndex compile(String tsv) throws Exception {
+		return MultiLevelIndex.compile(new CSVReader(new StringReader(tsv), '\t'),
+						new String[] {"Country", "State", "City"}, "test.tsv");
+	}
+
+	private static byte[] write(MultiLevelIndex index) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		index.writeTo(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a snapshot by hand, in the layout of
+	 * {@link MultiLevelIndex#writeTo(DataOutputStream)}.
+	 */
+	private static byte[] snapshot(String[] labels, String[] values, int[] nodeValues, int[] firstChild)
+					throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for(String[] strings: new String[][] {labels, values}) {
+			out.writeInt(strings.length);
+			for(String s: strings) {
+				byte[] utf8 = s.getBytes("UTF-8");
+				out.writeInt(utf8.length);
+				out.write(utf8);
+			}
+		}
+		out.writeInt(nodeValues.length);
+		for(int i: nodeValues) {
+			out.writeInt(i);
+		}
+		for(int i: firstChild) {
+			out.writeInt(i);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] snapshot(int[] nodeValues, int[] firstChild) throws IOException {
+		return snapshot(new String[] {"Select a x..."}, new String[] {"a", "b"}, nodeValues, firstChild);
+	}
+
+	private static void assertCorrupt(byte[] snapshot) {
+		try {
+			MultiLevelIndex.readFrom(ByteBuffer.wrap(snapshot));
+			fail("read a corrupt snapshot");
+		}
+		catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt snapshot"));
+		}
+	}
+
+	@Test
+	public void compiledTree() throws Exception {
+		MultiLevelIndex index = compile(TSV);
+
+		assertEquals(Arrays.asList("Select a country...", "United States", "Germany"), index.getChoices(new String[0]));
+		assertEquals(Arrays.asList("Select a city...", "San Francisco", "Los Angeles"),
+						index.getChoices(new String[] {"United States", "California"}));
+		assertEquals(Collections.emptyList(), index.getChoices(new String[] {"Germany", "Texas"}));
+		assertEquals(Collections.emptyList(), index.getChoices(new String[] {"Germany", "Bavaria", "Munich"}));
+		assertEquals("id,id United States,id Germany,id United States California,id United States Texas,id Germany Bavaria",
+						index.getDropdownIds("id"));
+	}
+
+	@Test
+	public void shortRowsAreSkipped() throws Exception {
+		MultiLevelIndex index = compile(TSV + "France\tBrittany\n");
+
+		assertEquals(Arrays.asList("Select a country...", "United States", "Germany"), index.getChoices(new String[0]));
+	}
+
+	@Test
+	public void fileWithOnlyShortRowsIsRejected() throws Exception {
+		try {
+			compile("Country\tState\tCity\nFrance\tBrittany\nSpain\n");
+			fail("compiled a file without a complete row");
+		}
+		catch(Exception e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("at least 2 lines"));
+		}
+	}
+
+	@Test
+	public void snapshotRoundTrip() throws Exception {
+		MultiLevelIndex index = compile(TSV);
+		MultiLevelIndex read = MultiLevelIndex.readFrom(ByteBuffer.wrap(write(index)));
+
+		assertEquals(index.getDropdownIds("id"), read.getDropdownIds("id"));
+		assertEquals(index.getChoicesByDropdownId("id"), read.getChoicesByDropdownId("id"));
+		assertEquals(index.getChoices(new String[] {"United States"}), read.getChoices(new String[] {"United States"}));
+		assertEquals(index.getSize(), read.getSize());
+	}
+
+	@Test
+	public void handWrittenSnapshot() throws Exception {
+		MultiLevelIndex index = MultiLevelIndex.readFrom(ByteBuffer.wrap(snapshot(new int[] {-1, 0, 1},
+						new int[] {1, 3, 3, 3})));
+
+		assertEquals(Arrays.asList("Select a x...", "a", "b"), index.getChoices(new String[0]));
+	}
+
+	@Test
+	public void valueOutOfRange() throws Exception {
+		assertCorrupt(snapshot(new int[] {-1, 0, 2}, new int[] {1, 3, 3, 3}));
+		assertCorrupt(snapshot(new int[] {-1, 0, -1}, new int[] {1, 3, 3, 3}));
+	}
+
+	@Test
+	public void badRoot() throws Exception {
+		assertCorrupt(snapshot(new int[] {0, 0, 1}, new int[] {1, 3, 3, 3}));
+	}
+
+	@Test
+	public void childBeforeItsParent() throws Exception {
+		assertCorrupt(snapshot(new int[] {-1, 0, 1}, new int[] {0, 3, 3, 3}));
+	}
+
+	@Test
+	public void childrenOutOfOrder() throws Exception {
+		assertCorrupt(snapshot(new int[] {-1, 0, 1}, new int[] {1, 3, 2, 3}));
+	}
+
+	@Test
+	public void childrenPastTheLastNode() throws Exception {
+		assertCorrupt(snapshot(new int[] {-1, 0, 1}, new int[] {1, 3, 3, 4}));
+	}
+
+	@Test
+	public void hugeCounts() throws Exception {
+		ByteBuffer bytes = ByteBuffer.wrap(snapshot(new int[] {-1, 0, 1}, new int[] {1, 3, 3, 3}));
+		// the node count follows the label and the two values
+		int nodeCountAt = 4 + 4 + "Select a x...".length() + 4 + (4 + 1) * 2;
+		bytes.putInt(nodeCountAt, Integer.MAX_VALUE);
+		assertCorrupt(bytes.array());
+
+		bytes.putInt(0, Integer.MAX_VALUE);
+		assertCorrupt(bytes.array());
+	}
+
+	@Test
+	public void badStringLength() throws Exception {
+		ByteBuffer bytes = ByteBuffer.wrap(snapshot(new int[] {-1, 0, 1}, new int[] {1, 3, 3, 3}));
+		bytes.putInt(4, -1);
+		assertCorrupt(bytes.array());
+
+		bytes.putInt(4, Integer.MAX_VALUE);
+		assertCorrupt(bytes.array());
+	}
+
+	@Test
+	public void truncatedSnapshot() throws Exception {
+		byte[] bytes = write(compile(TSV));
+		for(int length: new int[] {0, 3, 6, bytes.length / 2, bytes.length - 1}) {
+			assertCorrupt(Arrays.copyOf(bytes, length));
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	private final SingleFlight<String> flight = new SingleFlight<String>();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final AtomicInteger runs = new AtomicInteger();
+
+	@After
+	public void shutDown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Counts its runs and blocks until released.
+	 */
+	private Callable<Integer> blocking() {
+		return new Callable<Integer>() {
+			public Integer call() throws Exception {
+				int run = runs.incrementAndGet();
+				release.await(10, TimeUnit.SECONDS);
+				return run;
+			}
+		};
+	}
+
+	private Callable<Integer> counting() {
+		return new Callable<Integer>() {
+			public Integer call() {
+				return runs.incrementAndGet();
+			}
+		};
+	}
+
+	@Test
+	public void concurrentCallersShareOneRun() throws Exception {
+		FutureTask<Integer> first = flight.start("key", blocking(), executor);
+		FutureTask<Integer> second = flight.start("key", blocking(), executor);
+		assertSame(first, second);
+
+		release.countDown();
+		assertEquals(Integer.valueOf(1), first.get(10, TimeUnit.SECONDS));
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void differentKeysRunSeparately() throws Exception {
+		FutureTask<Integer> first = flight.start("one", blocking(), executor);
+		FutureTask<Integer> second = flight.start("two", blocking(), executor);
+		assertNotSame(first, second);
+
+		release.countDown();
+		first.get(10, TimeUnit.SECONDS);
+		second.get(10, TimeUnit.SECONDS);
+		assertEquals(2, runs.get());
+	}
+
+	@Test
+	public void finishedRunIsNotShared() throws Exception {
+		assertEquals(Integer.valueOf(1), flight.call("key", counting()));
+		assertEquals(Integer.valueOf(2), flight.call("key", counting()));
+	}
+
+	@Test
+	public void restartDoesNotJoinTheRunningCall() throws Exception {
+		FutureTask<Integer> running = flight.start("key", blocking(), executor);
+		FutureTask<Integer> restarted = flight.restart("key", blocking(), executor);
+		assertNotSame(running, restarted);
+
+		// later callers join the restarted call
+		assertSame(restarted, flight.start("key", blocking(), executor));
+
+		release.countDown();
+		running.get(10, TimeUnit.SECONDS);
+		restarted.get(10, TimeUnit.SECONDS);
+		assertEquals(2, runs.get());
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ *Copyright (c) 2013 Costco, RGS
+ *See the file license.txt for copying permission.
+ */
+
+package com.moded.extendedchoiceparameter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class UrlPropertySourceTest {
+
+	@Rule
+	public TemporaryFolder home = new TemporaryFolder();
+
+	private HttpServer server;
+
+	private String url;
+
+	private final UrlPropertySource source = new UrlPropertySource();
+
+	/**
+	 * The document served; its ETag is its version.
+	 */
+	private volatile String body = "colors=red,green\n";
+
+	private volatile int version = 1;
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private final AtomicInteger notModified = new AtomicInteger();
+
+	private volatile String ifNoneMatch;
+
+	@Before
+	public void startServer() throws IOException {
+		DiskCache.root = home.getRoot();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/choices.properties", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				String etag = "\"" + version + "\"";
+				ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+				exchange.getResponseHeaders().set("ETag", etag);
+				if(etag.equals(ifNoneMatch)) {
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders(304, -1);
+				}
+				else {
+					byte[] bytes = body.getBytes("ISO-8859-1");
+					exchange.sendResponseHeaders(200, bytes.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(bytes);
+					out.close();
+				}
+				exchange.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/choices.properties";
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+		ChoiceSourceCache.clear();
+		DiskCache.root = null;
+	}
+
+	private void change(String newBody) {
+		body = newBody;
+		++version;
+	}
+
+	@Test
+	public void firstLoadIsUnconditional() throws Exception {
+		Map<String, String> properties = source.load(url, null);
+
+		assertEquals("red,green", properties.get("colors"));
+		assertEquals(1, requests.get());
+		assertNull(ifNoneMatch);
+	}
+
+	@Test
+	public void unchangedDocumentIsReused() throws Exception {
+		Map<String, String> first = source.load(url, null);
+		Map<String, String> second = source.load(url, first);
+
+		assertSame(first, second);
+		assertEquals("\"1\"", ifNoneMatch);
+		assertEquals(2, requests.get());
+		assertEquals(1, notModified.get());
+	}
+
+	@Test
+	public void changedDocumentIsFetchedAgain() throws Exception {
+		Map<String, String> first = source.load(url, null);
+		change("colors=blue\n");
+		Map<String, String> second = source.load(url, first);
+
+		assertNotSame(first, second);
+		assertEquals("blue", second.get("colors"));
+		assertEquals(0, notModified.get());
+
+		// the new copy and its ETag were saved
+		assertSame(second, source.load(url, second));
+		assertEquals("\"2\"", ifNoneMatch);
+	}
+
+	@Test
+	public void withoutPreviousValueTheDocumentIsFetched() throws Exception {
+		source.load(url, null);
+		Map<String, String> again = source.load(url, null);
+
+		assertEquals("red,green", again.get("colors"));
+		assertNull(ifNoneMatch);
+		assertEquals(0, notModified.get());
+	}
+
+	@Test
+	public void lastGoodCopyIsKeptOnDisk() throws Exception {
+		Map<String, String> loaded = source.load(url, null);
+		server.stop(0);
+
+		assertEquals(loaded, source.getLastKnown(url));
+	}
+
+	@Test
+	public void diskCopyIsServedWhileTheServerIsDown() throws Exception {
+		Map<String, String> loaded = source.load(url, null);
+		server.stop(0);
+
+		assertEquals(loaded, ChoiceSourceCache.get(source, url));
+	}
+
+	@Test
+	public void validationKeepsNothing() throws Exception {
+		Map<String, String> properties = PropertyFileValidation.load(url);
+
+		assertEquals("red,green", properties.get("colors"));
+		assertNull(source.getLastKnown(url));
+		assertNull(ChoiceSourceCache.getCached(source, url));
+		for(CircuitBreaker breaker: ChoiceSourceCache.getBreakers()) {
+			// other tests' refreshes may still be running
+			assertFalse(url.equals(breaker.getLocation()));
+		}
+	}
+
+	@Test
+	public void forgottenCopyIsDeleted() throws Exception {
+		source.load(url, null);
+		source.forget(url);
+
+		assertNull(source.getLastKnown(url));
+	}
+}